@@ -0,0 +1,591 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A RandomForest flattened into parallel primitive arrays for fast
+ * prediction.
+ *
+ * Every node of every tree is an index into the arrays.  A leaf has
+ * attr[node] == -1 and decides on decision[node].  Any other node splits on
+ * attr[node], and its children are laid out next to each other, so the child
+ * for value code v is node offset[node] + v.  A split on a numeric attribute
+ * has threshold[node] >= 0 and two children instead: offset[node] for bins
+ * up to the threshold and offset[node] + 1 for the rest.  A non-leaf node's
+ * decision[node] is the decision code of its fallback, for rows with an
+ * unknown value of its attribute.  Each tree is laid out breadth first
+ * starting at roots[t].
+ *
+ * A CompiledForest can be saved to and loaded from a model file, which holds
+ * the same arrays after a dictionary table.  All numbers are big-endian ints:
+ *
+ *   magic, version,
+ *   numAttrs, then for each attribute its name, numValues values, and
+ *   numCuts doubles (0 unless it is numeric),
+ *   numDecisions, then each decision,
+ *   numTrees, numNodes, roots, attr, offset, decision, threshold.
+ *
+ * Each string is its UTF-8 length followed by its bytes, and the table is
+ * padded with zeros to a multiple of four bytes so the arrays are aligned.
+ * Version 1 files, from before numeric attributes, have no cuts or
+ * threshold array, and still load.  Files before version 3 have no
+ * fallbacks, so their forests still reject rows with unknown values.
+ */
+@SuppressWarnings("serial")
+public class CompiledForest<D> implements java.io.Serializable {
+
+    /** The dictionaries the codes refer to. */
+    public final Schema<D> schema;
+
+    /** The root node of each tree. */
+    final int[] roots;
+
+    /** The attribute each node splits on; -1 for leaves. */
+    final int[] attr;
+
+    /** The node of the first child of each non-leaf node. */
+    final int[] offset;
+
+    /** The decision code of each leaf, and the fallback of other nodes. */
+    final int[] decision;
+
+    /** The threshold bin of each numeric split; -1 for other nodes. */
+    final int[] threshold;
+
+    /**
+     * The number of rows predictBatch() runs each tree over at a time; their
+     * votes stay in cache while every tree is walked over them.
+     */
+    static final int BLOCK = 256;
+
+    /** The first int of every model file. */
+    static final int MAGIC = 0x52464D31;
+
+    /** The version of the model file format written by save(). */
+    static final int VERSION = 3;
+
+    /** The most bytes of a model file mapped at once. */
+    private static final int MAP_SIZE = 1 << 30;
+
+    /** Vote counting space for predict(row), shared by all forests. */
+    private static final ThreadLocal<int[]> VOTES = new ThreadLocal<int[]>();
+
+    /**
+     * @param schema    The dictionaries the codes refer to.
+     * @param roots     The root node of each tree.
+     * @param attr      The split attribute of each node; -1 for leaves.
+     * @param offset    The first child of each non-leaf node.
+     * @param decision  The decision code of each leaf, and the fallback of
+     *                  each other node; -1 for none.
+     * @param threshold The threshold bin of each numeric split; -1 for other
+     *                  nodes.
+     */
+    CompiledForest(Schema<D> schema, int[] roots, int[] attr, int[] offset,
+            int[] decision, int[] threshold)
+    {
+        this.schema = schema;
+        this.roots = roots;
+        this.attr = attr;
+        this.offset = offset;
+        this.decision = decision;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Flatten a forest.
+     *
+     * @param schema    The schema of the data the trees were grown from.
+     * @param trees     The trees to flatten.
+     * @return          A CompiledForest that decides the same as the trees.
+     */
+    static <D> CompiledForest<D> compile(Schema<D> schema, List<DecisionTree<D>> trees) {
+        // Count the nodes so the arrays can be sized up front.
+        int numNodes = 0;
+        for (DecisionTree<D> tree : trees) {
+            numNodes += count(tree);
+        }
+        int[] roots = new int[trees.size()];
+        int[] attr = new int[numNodes];
+        int[] offset = new int[numNodes];
+        int[] decision = new int[numNodes];
+        int[] threshold = new int[numNodes];
+        Arrays.fill(threshold, -1);
+        @SuppressWarnings("unchecked")
+        DecisionTree<D>[] nodes = (DecisionTree<D>[])new DecisionTree<?>[numNodes];
+
+        // Lay out each tree breadth first, using nodes as the queue.
+        int end = 0;
+        for (int t = 0; t < roots.length; t++) {
+            roots[t] = end;
+            nodes[end++] = trees.get(t);
+            for (int i = roots[t]; i < end; i++) {
+                if (nodes[i] instanceof Tree) {
+                    Tree<D> tree = (Tree<D>)nodes[i];
+                    attr[i] = tree.attr;
+                    offset[i] = end;
+                    decision[i] = tree.fallback.code;
+                    if (tree instanceof Split) {
+                        threshold[i] = ((Split<D>)tree).threshold;
+                    }
+                    for (DecisionTree<D> child : tree.children) {
+                        nodes[end++] = child;
+                    }
+                } else {
+                    attr[i] = -1;
+                    decision[i] = ((Decision<D>)nodes[i]).code;
+                }
+            }
+        }
+        return new CompiledForest<D>(schema, roots, attr, offset, decision, threshold);
+    }
+
+    /**
+     * @return The number of nodes in tree, counting shared leaves each time
+     *         they are reached.
+     */
+    private static <D> int count(DecisionTree<D> tree) {
+        int n = 1;
+        if (tree instanceof Tree) {
+            for (DecisionTree<D> child : ((Tree<D>)tree).children) {
+                n += count(child);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The number of trees in this forest.
+     */
+    public int size() {
+        return roots.length;
+    }
+
+    /**
+     * @return The total number of nodes in this forest.
+     */
+    public int numNodes() {
+        return attr.length;
+    }
+
+    /**
+     * Follow a row down one tree.
+     *
+     * @param t     The index of the tree.
+     * @param row   The value code of each attribute.
+     * @return      The decision code of the leaf reached, or of the fallback
+     *              of the first node with an unknown value on the way.
+     * @throws IllegalArgumentException If row has an unknown value on the way
+     *                                  and the node has no fallback.
+     */
+    public int classify(int t, int[] row) throws IllegalArgumentException {
+        int node = roots[t];
+        int a;
+        while ((a = attr[node]) >= 0) {
+            int v = row[a];
+            if (v < 0) {
+                if (decision[node] < 0) {
+                    throw new IllegalArgumentException(
+                            "Unknown value for attribute " + schema.attrs[a] + ".");
+                }
+                return decision[node];
+            }
+            node = child(node, v);
+        }
+        return decision[node];
+    }
+
+    /**
+     * @param node  A non-leaf node.
+     * @param v     The row's value code for the node's attribute.
+     * @return      The child of node the row goes to.
+     */
+    private int child(int node, int v) {
+        int t = threshold[node];
+        return offset[node] + (t < 0 ? v : v > t ? 1 : 0);
+    }
+
+    /**
+     * Count the votes of every tree on a row.
+     *
+     * @param row   The value code of each attribute.
+     * @param votes Filled with the number of votes for each decision code;
+     *              at least schema.numDecisions() long.
+     * @return      The decision code with the most votes; the lowest on ties.
+     */
+    public int predict(int[] row, int[] votes) {
+        int k = schema.numDecisions();
+        for (int d = 0; d < k; d++) {
+            votes[d] = 0;
+        }
+        for (int t = 0; t < roots.length; t++) {
+            votes[classify(t, row)]++;
+        }
+        int mode = 0;
+        for (int d = 1; d < k; d++) {
+            if (votes[d] > votes[mode]) {
+                mode = d;
+            }
+        }
+        return mode;
+    }
+
+    /**
+     * Gets the mode decision code of the trees on a row, without allocating.
+     *
+     * @param row   The value code of each attribute.
+     * @return      The same decision code RandomForest.decide() would give.
+     */
+    public int predict(int[] row) {
+        int[] votes = VOTES.get();
+        if (votes == null || votes.length < schema.numDecisions()) {
+            votes = new int[schema.numDecisions()];
+            VOTES.set(votes);
+        }
+        return predict(row, votes);
+    }
+
+    /**
+     * Let the trees vote on a row, in order, until the rest of them can't
+     * change the decision or it is as sure as asked for.
+     *
+     * @param row           The value code of each attribute.
+     * @param confidence    How sure the vote must be to stop early, from 0 to
+     *                      1; 1 gives the same decision as predict(row).
+     * @return              The vote, with how many trees were evaluated.
+     */
+    public Vote<D> vote(int[] row, double confidence) {
+        Vote<D> vote = new Vote<D>(schema, roots.length, confidence);
+        for (int t = 0; t < roots.length; t++) {
+            if (vote.add(classify(t, row))) {
+                break;
+            }
+        }
+        ForestMetrics.voted(vote.evaluated(), roots.length);
+        return vote;
+    }
+
+    /**
+     * @param row   The value code of each attribute.
+     * @return      The decision of this forest on the row.
+     */
+    public D decide(int[] row) {
+        return schema.decision(predict(row));
+    }
+
+    /**
+     * Count the votes of every tree on a batch of rows, one tree at a time.
+     *
+     * @param rows      The value codes of each row.
+     * @param votes     Filled with the votes for each row: the votes for
+     *                  decision code d on rows[i] are votes[i * k + d], where
+     *                  k is schema.numDecisions().
+     * @param decisions Filled with the decision code with the most votes for
+     *                  each row; the lowest on ties.
+     */
+    public void predictBatch(int[][] rows, int[] votes, int[] decisions) {
+        long start = System.nanoTime();
+        int k = schema.numDecisions();
+        Arrays.fill(votes, 0, rows.length * k, 0);
+        for (int from = 0; from < rows.length; from += BLOCK) {
+            int to = Math.min(from + BLOCK, rows.length);
+            for (int t = 0; t < roots.length; t++) {
+                for (int i = from; i < to; i++) {
+                    votes[i * k + classify(t, rows[i])]++;
+                }
+            }
+        }
+        tally(votes, decisions, rows.length);
+        ForestMetrics.predicted(rows.length, System.nanoTime() - start);
+    }
+
+    /**
+     * Count the votes of every tree on a range of rows of a dataset, one
+     * tree at a time.  The rows are read straight from the dataset's columns.
+     *
+     * @param data      The rows to decide on; must share this forest's schema.
+     * @param from      The first row to decide on.
+     * @param to        One past the last row to decide on.
+     * @param votes     Filled with the votes for each row: the votes for
+     *                  decision code d on row from + i are votes[i * k + d].
+     * @param decisions Filled with the decision code with the most votes for
+     *                  each row; the lowest on ties.
+     */
+    public void predictBatch(Dataset<D> data, int from, int to, int[] votes, int[] decisions) {
+        long start = System.nanoTime();
+        int k = schema.numDecisions();
+        Arrays.fill(votes, 0, (to - from) * k, 0);
+        byte[][] columns = data.columns;
+        for (int lb = from; lb < to; lb += BLOCK) {
+            int ub = Math.min(lb + BLOCK, to);
+            for (int t = 0; t < roots.length; t++) {
+                int root = roots[t];
+                for (int r = lb; r < ub; r++) {
+                    int node = root;
+                    int a;
+                    while ((a = attr[node]) >= 0) {
+                        node = child(node, columns[a][r] & 0xFF);
+                    }
+                    votes[(r - from) * k + decision[node]]++;
+                }
+            }
+        }
+        tally(votes, decisions, to - from);
+        ForestMetrics.predicted(to - from, System.nanoTime() - start);
+    }
+
+    /**
+     * @param data      The rows to decide on; must share this forest's schema.
+     * @return          The decision code of this forest on each row.
+     */
+    public int[] predictBatch(Dataset<D> data) {
+        int[] votes = new int[data.size() * schema.numDecisions()];
+        int[] decisions = new int[data.size()];
+        predictBatch(data, 0, data.size(), votes, decisions);
+        return decisions;
+    }
+
+    /**
+     * Run a range of a dataset against this forest.
+     *
+     * @param data      The test data; must share this forest's schema.
+     * @param from      The first row to test.
+     * @param to        One past the last row to test.
+     * @return          The number of correct decisions by this forest.
+     */
+    public int test(Dataset<D> data, int from, int to) {
+        int n = Math.min(BLOCK, to - from);
+        return test(data, from, to, new int[n * schema.numDecisions()], new int[n]);
+    }
+
+    /**
+     * Run a range of a dataset against this forest, with the given space to
+     * count votes in.
+     *
+     * @param data      The test data; must share this forest's schema.
+     * @param from      The first row to test.
+     * @param to        One past the last row to test.
+     * @param votes     Room for the votes of min(BLOCK, to - from) rows.
+     * @param decisions Room for the decisions of min(BLOCK, to - from) rows.
+     * @return          The number of correct decisions by this forest.
+     */
+    public int test(Dataset<D> data, int from, int to, int[] votes, int[] decisions) {
+        int correct = 0;
+        for (int lb = from; lb < to; lb += BLOCK) {
+            int ub = Math.min(lb + BLOCK, to);
+            predictBatch(data, lb, ub, votes, decisions);
+            for (int r = lb; r < ub; r++) {
+                if (decisions[r - lb] == data.label(r)) {
+                    correct++;
+                }
+            }
+        }
+        return correct;
+    }
+
+    /**
+     * Write this forest to a model file.  Decisions are written as strings,
+     * so they come back as strings from load().
+     *
+     * @param file      The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(String file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            // The dictionary table.
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(schema.numAttrs());
+            for (int i = 0; i < schema.numAttrs(); i++) {
+                writeString(out, schema.attrs[i]);
+                out.writeInt(schema.values[i].length);
+                for (String value : schema.values[i]) {
+                    writeString(out, value);
+                }
+                double[] cuts = schema.isNumeric(i) ? schema.cuts[i] : new double[0];
+                out.writeInt(cuts.length);
+                for (double cut : cuts) {
+                    out.writeDouble(cut);
+                }
+            }
+            out.writeInt(schema.numDecisions());
+            for (D d : schema.decisions) {
+                writeString(out, String.valueOf(d));
+            }
+            while (out.size() % 4 != 0) {
+                out.writeByte(0);
+            }
+
+            // The node arrays.
+            out.writeInt(roots.length);
+            out.writeInt(attr.length);
+            for (int[] array : new int[][] { roots, attr, offset, decision, threshold }) {
+                for (int x : array) {
+                    out.writeInt(x);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a forest from a model file written by save().  The file is
+     * memory-mapped, and the node arrays are copied out of it in bulk, so no
+     * objects are made for the trees or their nodes.
+     *
+     * The copy onto the heap is deliberate.  Every prediction walks these
+     * arrays, and plain int[] reads are bounds-checked once per loop where an
+     * IntBuffer view checks and byte-swaps on every get(); the same forest
+     * also has to work when compiled in memory, be serialized to other
+     * processors and have old files' fallbacks patched.  The file is closed
+     * once loaded, and the copy costs one pass over the arrays.
+     *
+     * @param file      The file to read.
+     * @return          The forest in the file.
+     * @throws IOException If the file can't be read, isn't a model file, or
+     *                     has a version this code doesn't know.
+     */
+    public static CompiledForest<String> load(String file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, Math.min(channel.size(), MAP_SIZE));
+
+            // The dictionary table.
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+                throw new IOException(file + " is not a forest model file.");
+            }
+            int version = buf.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(file + " has model format version "
+                        + version + "; only versions 1 to " + VERSION + " are supported.");
+            }
+            String[] attrs = new String[buf.getInt()];
+            String[][] values = new String[attrs.length][];
+            double[][] cuts = new double[attrs.length][];
+            for (int i = 0; i < attrs.length; i++) {
+                attrs[i] = readString(buf);
+                values[i] = new String[buf.getInt()];
+                for (int v = 0; v < values[i].length; v++) {
+                    values[i][v] = readString(buf);
+                }
+                int numCuts = version > 1 ? buf.getInt() : 0;
+                if (numCuts > 0) {
+                    cuts[i] = new double[numCuts];
+                    for (int b = 0; b < numCuts; b++) {
+                        cuts[i][b] = buf.getDouble();
+                    }
+                }
+            }
+            int numDecisions = buf.getInt();
+            List<String> decisions = new ArrayList<String>(numDecisions);
+            for (int d = 0; d < numDecisions; d++) {
+                decisions.add(readString(buf));
+            }
+            buf.position((buf.position() + 3) & ~3);
+
+            // The node arrays.
+            int numTrees = buf.getInt();
+            int numNodes = buf.getInt();
+            long position = buf.position();
+            int[] roots = readInts(channel, position, numTrees);
+            position += 4L * numTrees;
+            int[] attr = readInts(channel, position, numNodes);
+            position += 4L * numNodes;
+            int[] offset = readInts(channel, position, numNodes);
+            position += 4L * numNodes;
+            int[] decision = readInts(channel, position, numNodes);
+            position += 4L * numNodes;
+            int[] threshold;
+            if (version > 1) {
+                threshold = readInts(channel, position, numNodes);
+            } else {
+                threshold = new int[numNodes];
+                Arrays.fill(threshold, -1);
+            }
+            if (version < 3) {
+                // Older non-leaf nodes have no fallback.
+                for (int i = 0; i < numNodes; i++) {
+                    if (attr[i] >= 0) {
+                        decision[i] = -1;
+                    }
+                }
+            }
+
+            Schema<String> schema = new Schema<String>(attrs, values, decisions, cuts);
+            return new CompiledForest<String>(schema, roots, attr, offset, decision,
+                    threshold);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copy ints out of a file, mapping it a piece at a time.
+     *
+     * @param channel   The file.
+     * @param position  The position of the first int.
+     * @param n         The number of ints.
+     * @return          The ints.
+     * @throws IOException If the file is too short.
+     */
+    private static int[] readInts(FileChannel channel, long position, int n)
+        throws IOException
+    {
+        if (position + 4L * n > channel.size()) {
+            throw new IOException("Model file is truncated.");
+        }
+        int[] result = new int[n];
+        for (int i = 0; i < n; ) {
+            int count = Math.min(n - i, MAP_SIZE / 4);
+            IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY,
+                    position + 4L * i, 4L * count).asIntBuffer();
+            ints.get(result, i, count);
+            i += count;
+        }
+        return result;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fill in the mode decision code of each row from its votes.
+     */
+    private void tally(int[] votes, int[] decisions, int numRows) {
+        int k = schema.numDecisions();
+        for (int i = 0; i < numRows; i++) {
+            int base = i * k;
+            int mode = 0;
+            for (int d = 1; d < k; d++) {
+                if (votes[base + d] > votes[base + mode]) {
+                    mode = d;
+                }
+            }
+            decisions[i] = mode;
+        }
+    }
+
+}
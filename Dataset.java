@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * A set of samples stored column by column.  Every attribute value and
+ * decision is encoded once through a Schema, so attribute i of row r is just
+ * the byte columns[i][r] and its decision is labels[r].
+ */
+public class Dataset<D> {
+
+    /** Attributes can have at most this many distinct values. */
+    public static final int MAX_VALUES = 256;
+
+    /** Datasets can have at most this many distinct decisions. */
+    public static final int MAX_DECISIONS = 65536;
+
+    /** The dictionaries used to encode this data. */
+    public final Schema<D> schema;
+
+    /** The value codes for each attribute, unsigned. */
+    final byte[][] columns;
+
+    /** The decision code for each row, unsigned. */
+    final short[] labels;
+
+    /**
+     * @param schema    The dictionaries used to encode this data.
+     * @param columns   The value codes of each attribute, one array per
+     *                  attribute, each as long as labels.
+     * @param labels    The decision code of each row.
+     */
+    Dataset(Schema<D> schema, byte[][] columns, short[] labels) {
+        this.schema = schema;
+        this.columns = columns;
+        this.labels = labels;
+    }
+
+    /**
+     * Encode a list of samples.
+     *
+     * @param attrs     The attributes and their possible values.
+     * @param samples   The samples to encode.
+     * @return          A new Dataset holding the same samples.
+     * @throws IllegalArgumentException If an attribute has too many values,
+     *                                  or a sample is missing an attribute or
+     *                                  has a value not listed in attrs.
+     */
+    public static <D> Dataset<D> fromSamples(
+            Map<String,List<String>> attrs, List<Sample<D>> samples)
+        throws IllegalArgumentException
+    {
+        // Lay out the attribute dictionaries.
+        String[] names = attrs.keySet().toArray(new String[attrs.size()]);
+        String[][] values = new String[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = attrs.get(names[i]).toArray(new String[0]);
+            checkValues(names[i], values[i].length);
+        }
+        // Collect the decisions as we go; a Counter keeps them unique.
+        List<D> decisions = new ArrayList<D>();
+        Counter<D> seen = new Counter<D>();
+        for (Sample<D> sample : samples) {
+            if (seen.add(sample.decision) == 1) {
+                decisions.add(sample.decision);
+            }
+        }
+        checkDecisions(decisions.size());
+        Schema<D> schema = new Schema<D>(names, values, decisions);
+
+        // Encode every sample.
+        byte[][] columns = new byte[names.length][samples.size()];
+        short[] labels = new short[samples.size()];
+        int r = 0;
+        for (Sample<D> sample : samples) {
+            int[] row = schema.encode(sample.choices);
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] < 0) {
+                    throw new IllegalArgumentException("Attributes are missing value "
+                            + sample.choices.get(names[i]) + " of attribute " + names[i] + ".");
+                }
+                columns[i][r] = (byte)row[i];
+            }
+            labels[r] = (short)schema.decisionCode(sample.decision);
+            r++;
+        }
+        return new Dataset<D>(schema, columns, labels);
+    }
+
+    /**
+     * @throws IllegalArgumentException If n is too many values for attr.
+     */
+    static void checkValues(String attr, int n) throws IllegalArgumentException {
+        if (n > MAX_VALUES) {
+            throw new IllegalArgumentException("Attribute " + attr + " has "
+                    + n + " values; at most " + MAX_VALUES + " are supported.");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If n is too many decisions.
+     */
+    static void checkDecisions(int n) throws IllegalArgumentException {
+        if (n > MAX_DECISIONS) {
+            throw new IllegalArgumentException("Data has " + n
+                    + " decisions; at most " + MAX_DECISIONS + " are supported.");
+        }
+    }
+
+    /**
+     * @return The number of rows in this dataset.
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * @param attr  An attribute index.
+     * @param row   A row index.
+     * @return      The code of the value of attr in row.
+     */
+    public int value(int attr, int row) {
+        return columns[attr][row] & 0xFF;
+    }
+
+    /**
+     * @param row   A row index.
+     * @return      The code of the decision of row.
+     */
+    public int label(int row) {
+        return labels[row] & 0xFFFF;
+    }
+
+    /**
+     * @param row   A row index.
+     * @return      The decision of row.
+     */
+    public D decision(int row) {
+        return schema.decision(label(row));
+    }
+
+    /**
+     * Copy out the value codes of a single row, for use with decide().
+     *
+     * @param row   A row index.
+     * @return      The value code of each attribute in row.
+     */
+    public int[] row(int row) {
+        int[] result = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            result[i] = columns[i][row] & 0xFF;
+        }
+        return result;
+    }
+
+    /**
+     * Copy some of the rows of this dataset into a new one with the same
+     * schema.
+     *
+     * @param rows  The indices of the rows to select, in the order wanted.
+     * @return      A new Dataset holding just those rows.
+     */
+    public Dataset<D> select(int[] rows) {
+        byte[][] columns = new byte[this.columns.length][rows.length];
+        short[] labels = new short[rows.length];
+        for (int i = 0; i < columns.length; i++) {
+            byte[] from = this.columns[i];
+            byte[] to = columns[i];
+            for (int r = 0; r < rows.length; r++) {
+                to[r] = from[rows[r]];
+            }
+        }
+        for (int r = 0; r < rows.length; r++) {
+            labels[r] = this.labels[rows[r]];
+        }
+        return new Dataset<D>(schema, columns, labels);
+    }
+
+    /**
+     * @param from  The first row to include.
+     * @param to    One past the last row to include.
+     * @return      A new Dataset holding rows [from, to).
+     */
+    public Dataset<D> range(int from, int to) {
+        int[] rows = new int[to - from];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = from + r;
+        }
+        return select(rows);
+    }
+
+    /**
+     * Re-encode this dataset through another schema that has every one of
+     * its values and decisions, such as one from Schema.merge().
+     *
+     * @param schema    The schema to encode with.
+     * @return          A new Dataset holding the same samples.
+     * @throws IllegalArgumentException If schema is missing a value or
+     *                                  decision of this dataset.
+     */
+    public Dataset<D> recode(Schema<D> schema) throws IllegalArgumentException {
+        // An empty shard may not know the attributes, so size by schema.
+        byte[][] columns = new byte[schema.numAttrs()][size()];
+        short[] labels = new short[size()];
+        for (int i = 0; i < this.columns.length; i++) {
+            // Map each old code to its new one.
+            String[] values = this.schema.values[i];
+            byte[] map = new byte[values.length];
+            for (int v = 0; v < values.length; v++) {
+                int code = schema.valueCode(i, values[v]);
+                if (code < 0) {
+                    throw new IllegalArgumentException("Schema is missing value "
+                            + values[v] + " of attribute " + schema.attrs[i] + ".");
+                }
+                map[v] = (byte)code;
+            }
+            byte[] from = this.columns[i];
+            byte[] to = columns[i];
+            for (int r = 0; r < from.length; r++) {
+                to[r] = map[from[r] & 0xFF];
+            }
+        }
+        short[] map = new short[this.schema.numDecisions()];
+        for (int d = 0; d < map.length; d++) {
+            int code = schema.decisionCode(this.schema.decision(d));
+            if (code < 0) {
+                throw new IllegalArgumentException("Schema is missing decision "
+                        + this.schema.decision(d) + ".");
+            }
+            map[d] = (short)code;
+        }
+        for (int r = 0; r < labels.length; r++) {
+            labels[r] = map[this.labels[r] & 0xFFFF];
+        }
+        return new Dataset<D>(schema, columns, labels);
+    }
+
+    /**
+     * @param random    The generator to shuffle with.
+     * @return          A new Dataset with the rows in a random order.
+     */
+    public Dataset<D> shuffle(SplittableRandom random) {
+        return select(ListUtils.permutation(size(), random));
+    }
+
+}
@@ -0,0 +1,32 @@
+/**
+ * Represents a decision (leaf) node of a DecisionTree.
+ */
+@SuppressWarnings("serial")
+class Decision<D> extends DecisionTree<D> {
+
+    public D decision;
+    public int code;
+
+    /**
+     * @param schema    The schema the decision code belongs to.
+     * @param code      The code of the decision this node represents.
+     */
+    public Decision(Schema<D> schema, int code) {
+        this.decision = schema.decision(code);
+        this.code = code;
+    }
+
+    /**
+     * Simply return this node.
+     *
+     * @param row   Ignored.
+     */
+    public Decision<D> leaf(int[] row) {
+        return this;
+    }
+
+    public Decision<D> leaf(Dataset<D> data, int row) {
+        return this;
+    }
+
+}
@@ -1,10 +1,13 @@
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
 /**
  * Represents a decision tree with a decision of type D.
  *
- * Can either be a Decision or a Tree.
+ * Can either be a Decision, a Tree, or a Split on a numeric attribute.
+ * Trees are grown from and run against rows of a Dataset, so attributes,
+ * values and decisions are all referred to by their codes in the dataset's
+ * Schema.
  */
 @SuppressWarnings("serial")
 public abstract class DecisionTree<D> implements java.io.Serializable {
@@ -12,238 +15,218 @@ public abstract class DecisionTree<D> implements java.io.Serializable {
     /**
      * Grow a normal decision tree.
      *
-     * @param attrs     The attributes to use in this tree.
-     * @param samples   The sample data to train from; non-empty.
+     * @param data      The sample data to train from; non-empty.
      * @return          A decision tree.
-     * @throws IllegalArgumentException If the list of samples is empty.
+     * @throws IllegalArgumentException If the dataset is empty.
      */
-    public static <D> DecisionTree<D> growDecisionTree(
-            Map<String,List<String>> attrs, List<Sample<D>> samples)
+    public static <D> DecisionTree<D> growDecisionTree(Dataset<D> data)
         throws IllegalArgumentException
     {
-        return growDecisionTree(attrs, samples, 0);
+        int[] weights = new int[data.size()];
+        Arrays.fill(weights, 1);
+        return growDecisionTree(data, weights, 0, new SplittableRandom());
     }
 
     /**
      * Grow a normal or random forest decicion tree.
      *
-     * @param attrs     The attributes to use in this tree.
-     * @param samples   The sample data to train from; non-empty.
+     * @param data      The dataset holding the samples.
+     * @param weights   How many times each row of data counts towards the
+     *                  tree, such as a bootstrap from ListUtils.bootstrap();
+     *                  at least one must be non-zero.
      * @param m         The number of attributes to choose from at each node.
+     * @param random    The generator to choose attributes with; not shared
+     *                  with any other thread.
      * @return          A decision tree.
-     * @throws IllegalArgumentException If the list of samples is empty.
+     * @throws IllegalArgumentException If all of the weights are zero.
      */
     public static <D> DecisionTree<D> growDecisionTree(
-            Map<String,List<String>> attrs, List<Sample<D>> samples, int m)
+            Dataset<D> data, int[] weights, int m, SplittableRandom random)
         throws IllegalArgumentException
     {
-        // Short circuit on empty list of samples.
-        if (samples.isEmpty()) {
-            throw new IllegalArgumentException("Need samples to grow a DecisionTree.");
-        }
-        // See how many unique decisions are left in the set of samples.
-        Counter<D> decisions = new Counter<D>();
-        for (Sample<D> sample : samples) {
-            decisions.add(sample.decision);
-        }
-        // If only one, then decide on it.
-        if (decisions.size() == 1) {
-            for (D decision : decisions.keySet()) {
-                return new Decision<D>(decision);
-            }
-        }
-        // If there are no attributes left somehow, take the mode decision.
-        if (attrs.isEmpty()) {
-            return new Decision<D>(decisions.mode());
-        }
-        // Determine the attributes to select the best from.
-        Map<String,List<String>> selectedAttrs;
-        // If this is a random forest decision tree...
-        if (m > 0) {
-            // choose m attributes at random.
-            selectedAttrs = new HashMap<String,List<String>>();
-            for (String attr : ListUtils.sample(attrs.keySet(), m)) {
-                selectedAttrs.put(attr, attrs.get(attr));
-            }
-        } else {
-            // otherwise just use all the attrs.
-            selectedAttrs = attrs;
-        }
-        // Find the best attribute from the selected ones.
-        String best = bestAttribute(selectedAttrs, samples);
-        // Construct the children map for this Tree.
-        Map<String,DecisionTree<D>> children = new HashMap<String,DecisionTree<D>>();
-        // For each value of the selected "best" attribute
-        for (String v : selectedAttrs.get(best)) {
-            // Pick out the samples with a matching value for that attribute.
-            List<Sample<D>> vSamples = ListUtils.filter(samples, new SamplePredicate<D>(best, v));
-            // If there aren't any..,
-            if (vSamples.isEmpty()) {
-                // we have to make due with the mode of the samples we had.
-                children.put(v, new Decision<D>(decisions.mode()));
-            } else {
-                // otherwise, make an attrs map without the best attr...
-                Map<String,List<String>> attrsCopy = new HashMap<String,List<String>>(attrs);
-                attrsCopy.remove(best);
-                // and recursively call this function.
-                children.put(v, growDecisionTree(attrsCopy, vSamples));
+        return growDecisionTree(data, weights, m, TreeLimits.NONE, random);
+    }
+
+    /**
+     * Grow a normal or random forest decision tree, stopping early where the
+     * limits say so.
+     *
+     * @param data      The dataset holding the samples.
+     * @param weights   How many times each row of data counts towards the
+     *                  tree; at least one must be non-zero.
+     * @param m         The number of attributes to choose from at each node.
+     * @param limits    When to stop splitting nodes.
+     * @param random    The generator to choose attributes with; not shared
+     *                  with any other thread.
+     * @return          A decision tree.
+     * @throws IllegalArgumentException If all of the weights are zero.
+     */
+    public static <D> DecisionTree<D> growDecisionTree(
+            Dataset<D> data, int[] weights, int m, TreeLimits limits,
+            SplittableRandom random)
+        throws IllegalArgumentException
+    {
+        return new TreeGrower<D>(data, weights, m, limits, random, false).grow();
+    }
+
+    /**
+     * @param counts    A count for each decision code.
+     * @return          The code with the highest count; the lowest on ties.
+     */
+    static int mode(int[] counts) {
+        int mode = 0;
+        for (int d = 1; d < counts.length; d++) {
+            if (counts[d] > counts[mode]) {
+                mode = d;
             }
         }
-        // Return a Tree object that splits on our "best" attribute.
-        return new Tree<D>(best, children);
+        return mode;
     }
 
     /**
-     * Select the best attribute from a set attribute for the given set of samples.
-     * Best is defined as the one with the most information gain.
+     * Collapse a node whose children are all leaves with the same decision
+     * into one of them, since splitting it decides nothing.
      *
-     * @param attrs     A map of the attributes (and their values) to choose from.
-     * @param samples   The samples to find the information gain on.
-     * @return          An attribute whose values best divide the data up by decision.
+     * @param node  The node, with its children grown.
+     * @return      The leaf, or node if its children differ.
      */
-    private static <D> String bestAttribute(Map<String,List<String>> attrs, List<Sample<D>> samples) {
-        // The total entropy of the samples.
-        double totalH = entropy(samples);
-        // The highest information gain found so far.
-        double maxIG = 0.0;
-        // The attr with the highest information gain so far.
-        String result = null;
-        for (String attr : attrs.keySet()) {
-            List<String> values = attrs.get(attr);
-            double informationGain = totalH;
-            // For each value of this attribute...
-            for (String v : values) {
-                // find the samples that match it...
-                List<Sample<D>> vSamples = ListUtils.filter(samples, new SamplePredicate<D>(attr, v));
-                // and subtract IG equal to the entropy of vSamples multiplied by
-                // the percentage of total samples it represents.
-                informationGain -= (double)vSamples.size() / samples.size() * entropy(vSamples);
-            }
-            if (informationGain > maxIG) {
-                maxIG = informationGain;
-                result = attr;
+    static <D> DecisionTree<D> collapse(Tree<D> node) {
+        for (DecisionTree<D> child : node.children) {
+            if (!(child instanceof Decision)
+                    || ((Decision<D>)child).code != node.fallback.code) {
+                return node;
             }
         }
-        return result;
+        return node.fallback;
     }
 
     /**
-     * Calculates the entropy of a list of samples.
+     * Encode a tree as a compact preorder array of ints, for sending between
+     * processes: a node that splits on attribute a is a, then -1 - f where f
+     * is the decision code of its fallback, followed by the encoding of each
+     * of its children in value code order, and a leaf with decision code d is
+     * -1 - d.  A Split on a numeric attribute a is a, its threshold, its
+     * fallback, then its two children.
      *
-     * @param samples   The sample list to calculate the entropy of.
-     * @return          The entropy of the sample list.
+     * @param tree  The tree to encode.
+     * @return      The encoding of tree.
      */
-    private static <D> double entropy(List<Sample<D>> samples) {
-        double total = (double)samples.size();
-        // We need the breakdown of decision occurences; use a counter.
-        Counter<D> counter = new Counter<D>();
-        for (Sample<D> sample : samples) {
-            counter.add(sample.decision);
-        }
-        double entropy_total = 0.0;
-        for (Integer count : counter.values()) {
-            // The portion of samples with the corresponding decision.
-            double portion = count / total;
-            // Calculate the entropy and add it to the total.
-            entropy_total += -portion * Math.log(portion) / Math.log(2);
-        }
-        return entropy_total;
+    public static <D> int[] encode(DecisionTree<D> tree) {
+        int[] code = new int[length(tree)];
+        encode(tree, code, 0);
+        return code;
     }
 
     /**
-     * A predicate to be used with ListUtils.filter() that matches only samples
-     * with a certain value for a specified attribute.
+     * @return The number of ints in the encoding of tree.
      */
-    private static class SamplePredicate<D> implements Predicate<Sample<D>> {
-
-        private String attr;
-        private String value;
-
-        /**
-         * @param attr  The attribute to match.
-         * @param value The value of attr to match.
-         */
-        public SamplePredicate(String attr, String value) {
-            this.attr = attr;
-            this.value = value;
+    private static <D> int length(DecisionTree<D> tree) {
+        int n = tree instanceof Split ? 3 : tree instanceof Tree ? 2 : 1;
+        if (tree instanceof Tree) {
+            for (DecisionTree<D> child : ((Tree<D>)tree).children) {
+                n += length(child);
+            }
         }
+        return n;
+    }
 
-        /**
-         * Implement the Predicate interface.
-         *
-         * @param sample    A sample to test.
-         * @return          Whether the sample has value for attr.
-         */
-        public boolean test(Sample<D> sample) {
-            return sample.choices.get(attr).equals(value);
+    /**
+     * Write the encoding of tree into code starting at pos.
+     *
+     * @return The position just after the encoding.
+     */
+    private static <D> int encode(DecisionTree<D> tree, int[] code, int pos) {
+        if (tree instanceof Tree) {
+            Tree<D> node = (Tree<D>)tree;
+            code[pos++] = node.attr;
+            if (node instanceof Split) {
+                code[pos++] = ((Split<D>)node).threshold;
+            }
+            code[pos++] = -1 - node.fallback.code;
+            for (DecisionTree<D> child : node.children) {
+                pos = encode(child, code, pos);
+            }
+        } else {
+            code[pos++] = -1 - ((Decision<D>)tree).code;
         }
-
+        return pos;
     }
 
     /**
-     * The key function for subclasses to implement to be decision trees.
+     * Rebuild a tree from its encoding.  Each attribute's number of children
+     * comes from the schema, and the leaves for each decision are shared.
      *
-     * @param choices   The choices (values) for each attribute.
-     * @return          The decision for the given choices.
+     * @param schema    The schema the tree was grown with.
+     * @param code      An array holding the encoding.
+     * @param from      Where the encoding starts in code.
+     * @param leaves    The leaves made so far, by decision code; filled in as
+     *                  new ones are needed, so it can be shared by trees.
+     * @return          The tree.
      */
-    public abstract D decide(Map<String,String> choices);
-
-}
-
-/**
- * Represents a decision (leaf) node of a DecisionTree.
- */
-@SuppressWarnings("serial")
-class Decision<D> extends DecisionTree<D> {
+    public static <D> DecisionTree<D> decode(
+            Schema<D> schema, int[] code, int from, Decision<D>[] leaves)
+    {
+        int[] pos = { from };
+        return decode(schema, code, pos, leaves);
+    }
 
-    public D decision;
+    private static <D> DecisionTree<D> decode(
+            Schema<D> schema, int[] code, int[] pos, Decision<D>[] leaves)
+    {
+        int c = code[pos[0]++];
+        if (c < 0) {
+            return leaf(schema, -1 - c, leaves);
+        }
+        if (schema.isNumeric(c)) {
+            int threshold = code[pos[0]++];
+            Decision<D> fallback = leaf(schema, -1 - code[pos[0]++], leaves);
+            DecisionTree<D> left = decode(schema, code, pos, leaves);
+            DecisionTree<D> right = decode(schema, code, pos, leaves);
+            return new Split<D>(c, threshold, left, right, fallback);
+        }
+        Decision<D> fallback = leaf(schema, -1 - code[pos[0]++], leaves);
+        @SuppressWarnings("unchecked")
+        DecisionTree<D>[] children =
+            (DecisionTree<D>[])new DecisionTree<?>[schema.values[c].length];
+        for (int v = 0; v < children.length; v++) {
+            children[v] = decode(schema, code, pos, leaves);
+        }
+        return new Tree<D>(c, children, fallback);
+    }
 
     /**
-     * @param decision  The decision this node represents.
+     * @return The shared leaf for decision code d, made if need be.
      */
-    public Decision(D decision) {
-        this.decision = decision;
+    private static <D> Decision<D> leaf(Schema<D> schema, int d, Decision<D>[] leaves) {
+        if (leaves[d] == null) {
+            leaves[d] = new Decision<D>(schema, d);
+        }
+        return leaves[d];
     }
 
     /**
-     * Simply return the decision of this node.
+     * The key function for subclasses to implement to be decision trees.
      *
-     * @param choices   Ignored.
+     * @param row   The value code of each attribute.
+     * @return      The leaf reached by following row down the tree.
      */
-    public D decide(Map<String,String> choices) {
-        return decision;
-    }
-
-}
-
-/**
- * Represents a non-decision node of a decision tree.
- * Has an attribute, with a child subtree for each of the attribute's values.
- */
-@SuppressWarnings("serial")
-class Tree<D> extends DecisionTree<D> {
-
-    public String attr;
-    public Map<String,DecisionTree<D>> children;
+    public abstract Decision<D> leaf(int[] row);
 
     /**
-     * @param attr      The attribute that this node splits on.
-     * @param children  The subtrees for each of the values for attr.
+     * Like leaf(int[]), but reading the row straight from a dataset.
+     *
+     * @param data  The dataset holding the row.
+     * @param row   The index of the row in data.
+     * @return      The leaf reached by following the row down the tree.
      */
-    public Tree(String attr, Map<String,DecisionTree<D>> children) {
-        this.attr = attr;
-        this.children = children;
-    }
+    public abstract Decision<D> leaf(Dataset<D> data, int row);
 
     /**
-     * Recurse on the subtree for the value of attr in choices.
-     *
-     * @param choices   The values for each attribute.
-     * @return          A decision.
+     * @param row   The value code of each attribute.
+     * @return      The decision for the given row.
      */
-    public D decide(Map<String,String> choices) {
-        String value = choices.get(attr);
-        return children.get(value).decide(choices);
+    public D decide(int[] row) {
+        return leaf(row).decision;
     }
 
 }
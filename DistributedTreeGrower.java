@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import edu.rit.mp.IntegerBuf;
+import edu.rit.pj.Comm;
+import edu.rit.pj.reduction.IntegerOp;
+
+/**
+ * Grows a single DecisionTree together with the other processors of a
+ * cluster, each of which holds a different shard of the rows.
+ *
+ * The tree is grown a level at a time.  For every node on the frontier,
+ * each processor counts the weighted (value x decision) histogram of every
+ * attribute still available over its own rows, and the histograms of the
+ * whole level are added up with a single all-reduce.  Every processor then
+ * makes the same choices from the same totals and the same random stream,
+ * so they all end up with the same tree, and each one partitions its own
+ * rows between the children.
+ *
+ * Histograms are counted for every available attribute rather than just the
+ * m drawn at random, so falling back to all of the attributes when none of
+ * the drawn ones gains anything needs no second round of communication.
+ * A numeric attribute's table is over its bins, and it is split in two on
+ * the best threshold found by scanning the table, as TreeGrower does.
+ *
+ * The TreeLimits are applied as TreeGrower applies them, from the totals,
+ * so every processor stops at the same nodes.  Nodes whose children all
+ * came out as the same leaf are collapsed once the whole tree is grown.
+ */
+class DistributedTreeGrower<D> {
+
+    private static final double LOG_2 = Math.log(2);
+
+    /** The processors growing the tree. */
+    private final Comm world;
+
+    /** This processor's shard of the dataset. */
+    private final Dataset<D> data;
+
+    /** How many times each row of data counts towards the tree. */
+    private final int[] weights;
+
+    /** The number of attributes to choose from at each node; 0 for all. */
+    private final int m;
+
+    /** When to stop splitting nodes. */
+    private final TreeLimits limits;
+
+    /** The random stream for choosing attributes; the same on every processor. */
+    private final SplittableRandom random;
+
+    /** The number of distinct decisions. */
+    private final int k;
+
+    /** This processor's rows with a non-zero weight; each node owns a range. */
+    private final int[] rows;
+
+    /** One leaf per decision code, shared by the whole tree. */
+    private final Decision<D>[] leaves;
+
+    /** Nanoseconds spent counting and adding up histograms, for metrics. */
+    private long splitNanos;
+
+    /** Nanoseconds spent partitioning rows, for metrics. */
+    private long partitionNanos;
+
+    /**
+     * A node waiting to be split: a range of this processor's rows, the
+     * attributes left to split it on, its depth and node budget, and the
+     * slot its subtree goes in.
+     */
+    private static class Node<D> {
+
+        final int from;
+        final int to;
+        final int[] attrs;
+        final int depth;
+        final int budget;
+        final DecisionTree<D>[] slots;
+        final int slot;
+
+        Node(int from, int to, int[] attrs, int depth, int budget,
+                DecisionTree<D>[] slots, int slot)
+        {
+            this.from = from;
+            this.to = to;
+            this.attrs = attrs;
+            this.depth = depth;
+            this.budget = budget;
+            this.slots = slots;
+            this.slot = slot;
+        }
+
+    }
+
+    /**
+     * @param world     The processors growing the tree; every one of them
+     *                  must call grow() on its own grower.
+     * @param data      This processor's shard; every processor's shard must
+     *                  have the same schema.
+     * @param weights   How many times each row of data counts towards the
+     *                  tree; rows with weight 0 are left out.
+     * @param m         The number of attributes to choose from at each node.
+     * @param limits    When to stop splitting nodes.
+     * @param random    The generator to choose attributes with; it must be in
+     *                  the same state on every processor.
+     */
+    @SuppressWarnings("unchecked")
+    DistributedTreeGrower(Comm world, Dataset<D> data, int[] weights, int m,
+            TreeLimits limits, SplittableRandom random)
+    {
+        this.world = world;
+        this.data = data;
+        this.weights = weights;
+        this.m = m;
+        this.limits = limits;
+        this.random = random;
+        this.k = data.schema.numDecisions();
+        // Only the rows that were chosen need to be partitioned.
+        int numRows = 0;
+        for (int w : weights) {
+            if (w > 0) {
+                numRows++;
+            }
+        }
+        this.rows = new int[numRows];
+        for (int r = 0, j = 0; r < weights.length; r++) {
+            if (weights[r] > 0) {
+                rows[j++] = r;
+            }
+        }
+        this.leaves = (Decision<D>[])new Decision<?>[k];
+    }
+
+    /**
+     * @return A decision tree grown from every processor's rows.
+     * @throws IOException If communicating with the other processors fails.
+     * @throws IllegalArgumentException If no processor has any rows.
+     */
+    @SuppressWarnings("unchecked")
+    DecisionTree<D> grow() throws IOException, IllegalArgumentException {
+        int[] attrs = new int[data.schema.numAttrs()];
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = i;
+        }
+        DecisionTree<D>[] root = (DecisionTree<D>[])new DecisionTree<?>[1];
+        List<Node<D>> frontier = new ArrayList<Node<D>>();
+        frontier.add(new Node<D>(0, rows.length, attrs, 0, limits.maxNodes, root, 0));
+        while (!frontier.isEmpty()) {
+            // Lay out the histograms of the level: for each node, its
+            // decision counts followed by a table for each attribute left.
+            int[] starts = new int[frontier.size() + 1];
+            for (int j = 0; j < frontier.size(); j++) {
+                int length = k;
+                for (int attr : frontier.get(j).attrs) {
+                    length += data.schema.values[attr].length * k;
+                }
+                starts[j + 1] = starts[j] + length;
+            }
+            // Count this processor's rows, then add up everyone's counts.
+            long start = System.nanoTime();
+            int[] histograms = new int[starts[frontier.size()]];
+            for (int j = 0; j < frontier.size(); j++) {
+                count(frontier.get(j), histograms, starts[j]);
+            }
+            world.allReduce(IntegerBuf.buffer(histograms), IntegerOp.SUM);
+            ForestMetrics.reduced(4L * histograms.length);
+            splitNanos += System.nanoTime() - start;
+            // Split every node, collecting the next level.
+            List<Node<D>> next = new ArrayList<Node<D>>();
+            for (int j = 0; j < frontier.size(); j++) {
+                split(frontier.get(j), histograms, starts[j], next);
+            }
+            frontier = next;
+        }
+        ForestMetrics.growerTimes(splitNanos, partitionNanos);
+        return collapse(root[0]);
+    }
+
+    /**
+     * Collapse every node of a tree whose children are all the same leaf,
+     * bottom up.
+     *
+     * @param tree  The tree.
+     * @return      The collapsed tree.
+     */
+    private DecisionTree<D> collapse(DecisionTree<D> tree) {
+        if (!(tree instanceof Tree)) {
+            return tree;
+        }
+        Tree<D> node = (Tree<D>)tree;
+        for (int v = 0; v < node.children.length; v++) {
+            node.children[v] = collapse(node.children[v]);
+        }
+        return DecisionTree.collapse(node);
+    }
+
+    /**
+     * Count the weighted decisions of a node's rows on this processor, and
+     * the (value x decision) counts for each attribute left.
+     *
+     * @param node          The node.
+     * @param histograms    The counts of the whole level.
+     * @param base          Where the node's counts start in histograms.
+     */
+    private void count(Node<D> node, int[] histograms, int base) {
+        short[] labels = data.labels;
+        for (int j = node.from; j < node.to; j++) {
+            int r = rows[j];
+            histograms[base + (labels[r] & 0xFFFF)] += weights[r];
+        }
+        int table = base + k;
+        for (int attr : node.attrs) {
+            byte[] column = data.columns[attr];
+            for (int j = node.from; j < node.to; j++) {
+                int r = rows[j];
+                histograms[table + (column[r] & 0xFF) * k + (labels[r] & 0xFFFF)]
+                    += weights[r];
+            }
+            table += data.schema.values[attr].length * k;
+        }
+    }
+
+    /**
+     * Decide what a node is from the total counts, and if it splits,
+     * partition its rows and add its non-empty children to the next level.
+     *
+     * @param node          The node.
+     * @param histograms    The total counts of the whole level.
+     * @param base          Where the node's counts start in histograms.
+     * @param next          Gets the nodes of the next level.
+     * @throws IllegalArgumentException If the node has no rows anywhere.
+     */
+    @SuppressWarnings("unchecked")
+    private void split(Node<D> node, int[] histograms, int base, List<Node<D>> next)
+        throws IllegalArgumentException
+    {
+        // See how many unique decisions are left in the node.
+        int total = 0;
+        int mode = 0;
+        for (int d = 0; d < k; d++) {
+            total += histograms[base + d];
+            if (histograms[base + d] > histograms[base + mode]) {
+                mode = d;
+            }
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("Need samples to grow a DecisionTree.");
+        }
+        // If only one, or there are no attributes left, decide on the mode.
+        int numAttrs = node.attrs.length;
+        if (histograms[base + mode] == total || numAttrs == 0) {
+            node.slots[node.slot] = leaf(mode);
+            return;
+        }
+        // If the limits say to stop here, likewise.
+        if (node.depth >= limits.maxDepth || total < limits.minSamples
+                || !TreeLimits.canSplit(node.budget, 2)) {
+            node.slots[node.slot] = leaf(mode);
+            return;
+        }
+        // Find the information gain of each attribute from its table.
+        double totalH = entropy(histograms, base, total);
+        double[] gains = new double[numAttrs];
+        int[] tables = new int[numAttrs];
+        int[] thresholds = new int[numAttrs];
+        int[] left = new int[k];
+        int table = base + k;
+        for (int i = 0; i < numAttrs; i++) {
+            int numValues = data.schema.values[node.attrs[i]].length;
+            tables[i] = table;
+            if (data.schema.isNumeric(node.attrs[i])) {
+                gains[i] = TreeGrower.thresholdGain(histograms, table, numValues, k,
+                        histograms, base, total, totalH, left, thresholds, i);
+                table += numValues * k;
+                continue;
+            }
+            gains[i] = totalH;
+            for (int v = 0; v < numValues; v++) {
+                int vTotal = total(histograms, table + v * k);
+                if (vTotal > 0) {
+                    gains[i] -= (double)vTotal / total
+                        * entropy(histograms, table + v * k, vTotal);
+                }
+            }
+            table += numValues * k;
+        }
+        // Draw m attributes at random, the same way on every processor.
+        int[] order = new int[numAttrs];
+        for (int i = 0; i < numAttrs; i++) {
+            order[i] = i;
+        }
+        int numSelected = numAttrs;
+        if (m > 0 && m < numAttrs) {
+            for (int i = 0; i < m; i++) {
+                int j = i + random.nextInt(numAttrs - i);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            numSelected = m;
+        }
+        int best = best(gains, order, numSelected);
+        // If none of them gain anything, fall back to all of the attrs.
+        if (best < 0 && numSelected < numAttrs) {
+            best = best(gains, order, numAttrs);
+        }
+        // If still nothing does, the samples can't be told apart.
+        if (best < 0) {
+            node.slots[node.slot] = leaf(mode);
+            return;
+        }
+        int bestAttr = node.attrs[best];
+        int numValues = data.schema.values[bestAttr].length;
+        if (data.schema.isNumeric(bestAttr)) {
+            // Split this processor's rows in two on the threshold; both
+            // sides have rows somewhere, since the split gains something.
+            long start = System.nanoTime();
+            int t = thresholds[best];
+            int i = node.from;
+            int j = node.to;
+            while (i < j) {
+                if ((data.columns[bestAttr][rows[i]] & 0xFF) <= t) {
+                    i++;
+                } else {
+                    int r = rows[i];
+                    rows[i] = rows[--j];
+                    rows[j] = r;
+                }
+            }
+            partitionNanos += System.nanoTime() - start;
+            // Share out the node budget by the total weight on each side.
+            int leftTotal = 0;
+            for (int v = 0; v <= t; v++) {
+                leftTotal += total(histograms, tables[best] + v * k);
+            }
+            int[] budgets = TreeLimits.share(node.budget,
+                    new int[] { leftTotal, total - leftTotal }, total);
+            // The children fill in the split's slots as they are grown.
+            Split<D> split = new Split<D>(bestAttr, t, null, null, leaf(mode));
+            next.add(new Node<D>(node.from, i, node.attrs, node.depth + 1, budgets[0],
+                    split.children, 0));
+            next.add(new Node<D>(i, node.to, node.attrs, node.depth + 1, budgets[1],
+                    split.children, 1));
+            node.slots[node.slot] = split;
+            return;
+        }
+        // If there isn't room for a child per value, stop here after all.
+        if (!TreeLimits.canSplit(node.budget, numValues)) {
+            node.slots[node.slot] = leaf(mode);
+            return;
+        }
+        // Share out the node budget by the total weight of each value.
+        int[] valueTotals = new int[numValues];
+        for (int v = 0; v < numValues; v++) {
+            valueTotals[v] = total(histograms, tables[best] + v * k);
+        }
+        int[] budgets = TreeLimits.share(node.budget, valueTotals, total);
+        // Split this processor's rows on the best attribute.
+        long start = System.nanoTime();
+        int[] bounds = partition(bestAttr, numValues, node.from, node.to);
+        partitionNanos += System.nanoTime() - start;
+        int[] childAttrs = new int[numAttrs - 1];
+        for (int i = 0, j = 0; i < numAttrs; i++) {
+            if (i != best) {
+                childAttrs[j++] = node.attrs[i];
+            }
+        }
+        DecisionTree<D>[] children = (DecisionTree<D>[])new DecisionTree<?>[numValues];
+        for (int v = 0; v < numValues; v++) {
+            // A value no processor has any rows for shares the fallback.
+            if (valueTotals[v] == 0) {
+                children[v] = leaf(mode);
+            } else {
+                next.add(new Node<D>(bounds[v], bounds[v + 1], childAttrs,
+                        node.depth + 1, budgets[v], children, v));
+            }
+        }
+        node.slots[node.slot] = new Tree<D>(bestAttr, children, leaf(mode));
+    }
+
+    /**
+     * @param gains     The information gain of each attribute.
+     * @param order     The order to consider the attributes in.
+     * @param n         The number of attributes to consider.
+     * @return          The attribute among order[0, n) with the highest gain,
+     *                  the first on ties; -1 if none of them gain more than
+     *                  the limits' minGain.
+     */
+    private int best(double[] gains, int[] order, int n) {
+        double maxIG = limits.minGain;
+        int result = -1;
+        for (int i = 0; i < n; i++) {
+            if (gains[order[i]] > maxIG) {
+                maxIG = gains[order[i]];
+                result = order[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The sum of the k counts starting at from.
+     */
+    private int total(int[] counts, int from) {
+        int total = 0;
+        for (int d = from; d < from + k; d++) {
+            total += counts[d];
+        }
+        return total;
+    }
+
+    /**
+     * Calculates the entropy of a breakdown of decisions.
+     *
+     * @param counts    Holds the number of samples with each decision.
+     * @param from      The index in counts of the count for decision 0.
+     * @param total     The sum of the k counts.
+     * @return          The entropy of the samples counted.
+     */
+    private double entropy(int[] counts, int from, int total) {
+        double entropy_total = 0.0;
+        for (int d = from; d < from + k; d++) {
+            if (counts[d] == 0) {
+                continue;
+            }
+            double portion = (double)counts[d] / total;
+            entropy_total += -portion * Math.log(portion) / LOG_2;
+        }
+        return entropy_total;
+    }
+
+    /**
+     * Reorder a range of rows in place so that they are grouped by their
+     * value for an attribute, in value code order.
+     *
+     * @return The bounds of each group: the rows with value v are
+     *         [bounds[v], bounds[v + 1]).
+     */
+    private int[] partition(int attr, int numValues, int from, int to) {
+        byte[] column = data.columns[attr];
+        int[] bounds = new int[numValues + 1];
+        for (int j = from; j < to; j++) {
+            bounds[(column[rows[j]] & 0xFF) + 1]++;
+        }
+        bounds[0] = from;
+        for (int v = 0; v < numValues; v++) {
+            bounds[v + 1] += bounds[v];
+        }
+        int[] next = Arrays.copyOf(bounds, numValues);
+        for (int v = 0; v < numValues; v++) {
+            while (next[v] < bounds[v + 1]) {
+                int value = column[rows[next[v]]] & 0xFF;
+                if (value == v) {
+                    next[v]++;
+                } else {
+                    int t = rows[next[v]];
+                    rows[next[v]] = rows[next[value]];
+                    rows[next[value]++] = t;
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @param code  A decision code.
+     * @return      The shared leaf for that decision.
+     */
+    private Decision<D> leaf(int code) {
+        if (leaves[code] == null) {
+            leaves[code] = new Decision<D>(data.schema, code);
+        }
+        return leaves[code];
+    }
+
+}
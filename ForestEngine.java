@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A long-lived pool of threads for growing and running forests.
+ *
+ * The same ForkJoinPool is reused for every call, so repeated training and
+ * scoring don't pay for starting threads.  Trees are grown one task each and
+ * handed out to whichever thread is free, and each tree forks tasks for its
+ * large nodes into the same pool.  Scoring splits the rows in halves until
+ * the pieces are small, keeps its vote counting space in per-thread buffers
+ * and sums the correct counts as the tasks are joined.
+ */
+public class ForestEngine implements java.io.Closeable {
+
+    /** The engine used when none is given. */
+    private static ForestEngine shared;
+
+    /** The threads. */
+    private final ForkJoinPool pool;
+
+    /** Per-thread vote and decision buffers for scoring. */
+    private final ThreadLocal<int[][]> buffers = new ThreadLocal<int[][]>();
+
+    /**
+     * Make an engine with one thread per processor.
+     */
+    public ForestEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads   The number of threads to use.
+     */
+    public ForestEngine(int threads) {
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * @return The engine shared by forests that weren't given one; its thread
+     *         count comes from the pj.nt property, as with Parallel Java, or
+     *         defaults to one per processor.
+     */
+    public static synchronized ForestEngine shared() {
+        if (shared == null) {
+            shared = new ForestEngine(Integer.getInteger("pj.nt",
+                        Runtime.getRuntime().availableProcessors()));
+        }
+        return shared;
+    }
+
+    /**
+     * @return The number of threads in this engine.
+     */
+    public int threads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return The pool this engine runs its tasks in.
+     */
+    public ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * Grows a random forest from a dataset.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @return          A new RandomForest that scores with this engine.
+     */
+    public <D> RandomForestSmp<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed)
+    {
+        return growRandomForest(data, size, n, m, seed, null);
+    }
+
+    /**
+     * Grows a random forest from a dataset, tallying out-of-bag votes.  Each
+     * thread tallies its trees' votes separately, and the tallies are added
+     * into oob once all of the trees are grown.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest that scores with this engine.
+     */
+    public <D> RandomForestSmp<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            OutOfBag<D> oob)
+    {
+        return growRandomForest(data, size, n, m, seed, TreeLimits.NONE, oob);
+    }
+
+    /**
+     * Grows a random forest from a dataset, with limits on the trees.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest that scores with this engine.
+     */
+    public <D> RandomForestSmp<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            TreeLimits limits,
+            OutOfBag<D> oob)
+    {
+        return new RandomForestSmp<D>(data.schema,
+                growTrees(data, 0, size, n, m, seed, limits, oob), this);
+    }
+
+    /**
+     * Grows some of the trees of a forest, one task per tree.  Tree i comes
+     * from stream i of the seed, so growing trees [first, first + size) gives
+     * the same trees as a forest of first + size trees would have there.
+     *
+     * @param data      The sample data to train on.
+     * @param first     The index of the first tree to grow.
+     * @param size      The number of trees to grow.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The number of attributes to choose from at each node.
+     * @param seed      The master seed.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          The trees, in index order.
+     */
+    <D> List<DecisionTree<D>> growTrees(
+            final Dataset<D> data,
+            final int first,
+            final int size,
+            final int n,
+            final int m,
+            final long seed,
+            final TreeLimits limits,
+            OutOfBag<D> oob)
+    {
+        // The trees being grown.
+        @SuppressWarnings("unchecked")
+        final DecisionTree<D>[] trees = (DecisionTree<D>[])new DecisionTree<?>[size];
+
+        // Per-thread out-of-bag tallies, made as threads first need them.
+        // They belong to this call, so none outlive it on the pool's threads.
+        final Map<Thread,OutOfBag<D>> tallies = oob == null ? null
+            : new ConcurrentHashMap<Thread,OutOfBag<D>>();
+
+        // Construct the trees in parallel, one task per tree.
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(size);
+                for (int i = 0; i < size; i++) {
+                    final int index = i;
+                    tasks.add(new RecursiveAction() {
+                        protected void compute() {
+                            // Train and save a DecisionTree.
+                            trees[index] = RandomForest.growTree(data, n, m, seed,
+                                    first + index, limits, true,
+                                    tallies == null ? null : tally(tallies, data));
+                        }
+                    });
+                }
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+
+        // Combine the threads' tallies.
+        if (tallies != null) {
+            for (OutOfBag<D> t : tallies.values()) {
+                oob.addAll(t);
+            }
+        }
+
+        List<DecisionTree<D>> treeList = new ArrayList<DecisionTree<D>>(size);
+        for (DecisionTree<D> tree : trees) {
+            treeList.add(tree);
+        }
+        return treeList;
+    }
+
+    /**
+     * @param tallies   The out-of-bag tallies of a call, by thread.
+     * @param data      The sample data being trained on.
+     * @return          This thread's tally, made if it has none yet.
+     */
+    private static <D> OutOfBag<D> tally(Map<Thread,OutOfBag<D>> tallies, Dataset<D> data) {
+        // Only this thread adds its own entry, so there's no race to make it.
+        Thread thread = Thread.currentThread();
+        OutOfBag<D> t = tallies.get(thread);
+        if (t == null) {
+            t = new OutOfBag<D>(data);
+            tallies.put(thread, t);
+        }
+        return t;
+    }
+
+    /**
+     * Run a dataset against a forest.
+     *
+     * @param forest    The forest to evaluate.
+     * @param data      The test data; must share the forest's schema.
+     * @return          The number of correct decisions by the forest.
+     */
+    public <D> int test(CompiledForest<D> forest, Dataset<D> data) {
+        if (data.size() == 0) {
+            return 0;
+        }
+        // Leave several pieces per thread so free threads can steal work.
+        int grain = Math.max(CompiledForest.BLOCK, data.size() / (8 * threads()));
+        return pool.invoke(new Score<D>(forest, data, 0, data.size(), grain));
+    }
+
+    /**
+     * Shut the threads down once the tasks already given to them are done.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * @param k     The number of decisions.
+     * @return      This thread's vote and decision buffers for a block.
+     */
+    private int[][] buffers(int k) {
+        int[][] b = buffers.get();
+        if (b == null || b[0].length < CompiledForest.BLOCK * k) {
+            b = new int[][] {
+                new int[CompiledForest.BLOCK * k], new int[CompiledForest.BLOCK] };
+            buffers.set(b);
+        }
+        return b;
+    }
+
+    /**
+     * A task that counts the correct decisions on a range of rows.
+     */
+    @SuppressWarnings("serial")
+    private class Score<D> extends RecursiveTask<Integer> {
+
+        final CompiledForest<D> forest;
+        final Dataset<D> data;
+        final int from;
+        final int to;
+        final int grain;
+
+        /**
+         * @param forest    The forest to evaluate.
+         * @param data      The test data.
+         * @param from      The first row to test.
+         * @param to        One past the last row to test.
+         * @param grain     The most rows to test without splitting.
+         */
+        Score(CompiledForest<D> forest, Dataset<D> data, int from, int to, int grain) {
+            this.forest = forest;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        protected Integer compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                Score<D> left = new Score<D>(forest, data, from, mid, grain);
+                left.fork();
+                int right = new Score<D>(forest, data, mid, to, grain).compute();
+                return left.join() + right;
+            }
+            int[][] b = buffers(forest.schema.numDecisions());
+            return forest.test(data, from, to, b[0], b[1]);
+        }
+
+    }
+
+}
@@ -0,0 +1,356 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what training and inference spend their time on, for one process,
+ * and shows it over JMX as forest:type=ForestMetrics once register() has
+ * been called.
+ *
+ * Everything is counted in LongAdders, which keep a cell per contending
+ * thread, so recording never makes threads wait on each other.  The hot
+ * paths record in bulk besides: a TreeGrower adds up its own split and
+ * partition times and records them once per tree, and a tree's node, leaf
+ * and depth counts are found in a single walk once it is grown.
+ */
+public class ForestMetrics implements ForestMetricsMBean {
+
+    /** The name the metrics are registered under. */
+    public static final String NAME = "forest:type=ForestMetrics";
+
+    /** The metrics of this process. */
+    private static final ForestMetrics METRICS = new ForestMetrics();
+
+    /** Whether register() has put METRICS on the platform MBean server. */
+    private static volatile boolean registered;
+
+    private final LongAdder treesGrown = new LongAdder();
+    private final LongAdder nodesGrown = new LongAdder();
+    private final LongAdder leavesGrown = new LongAdder();
+    private final Histogram treeDepths = new Histogram();
+    private final Histogram leafCounts = new Histogram();
+    private final LongAdder splitNanos = new LongAdder();
+    private final LongAdder partitionNanos = new LongAdder();
+    private final LongAdder bootstrapNanos = new LongAdder();
+    private final LongAdder bytesGathered = new LongAdder();
+    private final LongAdder bytesBroadcast = new LongAdder();
+    private final LongAdder bytesReduced = new LongAdder();
+    private final LongAdder rowsPredicted = new LongAdder();
+    private final LongAdder treesEvaluated = new LongAdder();
+    private final LongAdder treesSkipped = new LongAdder();
+    private final Histogram predictionMicros = new Histogram();
+
+    /**
+     * The trees grown and nanoseconds spent by each thread, by name.
+     */
+    private final Map<String,LongAdder[]> threadBuilds =
+        new ConcurrentHashMap<String,LongAdder[]>();
+
+    /**
+     * @return The metrics of this process.
+     */
+    public static ForestMetrics get() {
+        return METRICS;
+    }
+
+    /**
+     * Show the metrics over JMX.  Starting the platform MBean server takes a
+     * while, so the mains call this before they start timing anything;
+     * metrics are counted whether or not it has been called.
+     */
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    METRICS, new ObjectName(NAME));
+        } catch (JMException e) {
+            // Another copy of this class got there first; keep counting anyway.
+        }
+        registered = true;
+    }
+
+    /**
+     * Record the shape of a newly grown tree, and how long this thread took
+     * to grow it.
+     *
+     * @param tree      The tree.
+     * @param nanos     The time it took to grow.
+     */
+    static void treeGrown(DecisionTree<?> tree, long nanos) {
+        // nodes, leaves, depth
+        long[] shape = new long[3];
+        walk(tree, 0, shape);
+        METRICS.treesGrown.increment();
+        METRICS.nodesGrown.add(shape[0]);
+        METRICS.leavesGrown.add(shape[1]);
+        METRICS.leafCounts.record(shape[1]);
+        METRICS.treeDepths.record(shape[2]);
+
+        String thread = Thread.currentThread().getName();
+        LongAdder[] build = METRICS.threadBuilds.get(thread);
+        if (build == null) {
+            LongAdder[] fresh = { new LongAdder(), new LongAdder() };
+            build = METRICS.threadBuilds.putIfAbsent(thread, fresh);
+            if (build == null) {
+                build = fresh;
+            }
+        }
+        build[0].increment();
+        build[1].add(nanos);
+    }
+
+    /**
+     * Count the nodes and leaves of a tree and find its depth.
+     */
+    private static void walk(DecisionTree<?> tree, int depth, long[] shape) {
+        shape[0]++;
+        shape[2] = Math.max(shape[2], depth);
+        if (tree instanceof Tree) {
+            for (DecisionTree<?> child : ((Tree<?>)tree).children) {
+                walk(child, depth + 1, shape);
+            }
+        } else {
+            shape[1]++;
+        }
+    }
+
+    /**
+     * @param split     Nanoseconds spent choosing attributes to split on.
+     * @param partition Nanoseconds spent partitioning rows.
+     */
+    static void growerTimes(long split, long partition) {
+        METRICS.splitNanos.add(split);
+        METRICS.partitionNanos.add(partition);
+    }
+
+    /**
+     * @param nanos     Nanoseconds spent drawing a bootstrap sample.
+     */
+    static void bootstrapped(long nanos) {
+        METRICS.bootstrapNanos.add(nanos);
+    }
+
+    static void gathered(long bytes) {
+        METRICS.bytesGathered.add(bytes);
+    }
+
+    static void broadcast(long bytes) {
+        METRICS.bytesBroadcast.add(bytes);
+    }
+
+    static void reduced(long bytes) {
+        METRICS.bytesReduced.add(bytes);
+    }
+
+    /**
+     * Only the batch calls are timed; timing a single row would cost more
+     * than walking the trees for it.
+     *
+     * @param rows      The number of rows predicted in one call.
+     * @param nanos     How long the call took.
+     */
+    static void predicted(int rows, long nanos) {
+        METRICS.rowsPredicted.add(rows);
+        METRICS.predictionMicros.record(nanos / 1000);
+    }
+
+    /**
+     * Does nothing until register() has been called.
+     *
+     * @param evaluated The number of trees an early-exit vote walked.
+     * @param numTrees  The number of trees in the forest.
+     */
+    static void voted(int evaluated, int numTrees) {
+        // A vote is a single row, so only count it when someone can look.
+        if (!registered) {
+            return;
+        }
+        METRICS.treesEvaluated.add(evaluated);
+        METRICS.treesSkipped.add(numTrees - evaluated);
+    }
+
+    public long getTreesGrown() {
+        return treesGrown.sum();
+    }
+
+    public long getNodesGrown() {
+        return nodesGrown.sum();
+    }
+
+    public long getLeavesGrown() {
+        return leavesGrown.sum();
+    }
+
+    public long[] getTreeDepthHistogram() {
+        return treeDepths.counts();
+    }
+
+    public long[] getLeafCountHistogram() {
+        return leafCounts.counts();
+    }
+
+    public long getSplitEvaluationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(splitNanos.sum());
+    }
+
+    public long getPartitionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(partitionNanos.sum());
+    }
+
+    public long getBootstrapMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(bootstrapNanos.sum());
+    }
+
+    public String[] getThreadTreeBuildTimes() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String,LongAdder[]> entry
+                : new TreeMap<String,LongAdder[]>(threadBuilds).entrySet()) {
+            result.add(entry.getKey() + ": trees=" + entry.getValue()[0].sum()
+                    + " ms=" + TimeUnit.NANOSECONDS.toMillis(entry.getValue()[1].sum()));
+        }
+        return result.toArray(new String[0]);
+    }
+
+    public long getBytesGathered() {
+        return bytesGathered.sum();
+    }
+
+    public long getBytesBroadcast() {
+        return bytesBroadcast.sum();
+    }
+
+    public long getBytesReduced() {
+        return bytesReduced.sum();
+    }
+
+    public long getPredictions() {
+        return predictionMicros.total();
+    }
+
+    public long getRowsPredicted() {
+        return rowsPredicted.sum();
+    }
+
+    public long[] getPredictionLatencyHistogramMicros() {
+        return predictionMicros.counts();
+    }
+
+    public long getPredictionLatencyP50Micros() {
+        return predictionMicros.percentile(50);
+    }
+
+    public long getPredictionLatencyP99Micros() {
+        return predictionMicros.percentile(99);
+    }
+
+    public long getVoteTreesEvaluated() {
+        return treesEvaluated.sum();
+    }
+
+    public long getVoteTreesSkipped() {
+        return treesSkipped.sum();
+    }
+
+    public void reset() {
+        for (LongAdder adder : new LongAdder[] { treesGrown, nodesGrown, leavesGrown,
+                splitNanos, partitionNanos, bootstrapNanos, bytesGathered,
+                bytesBroadcast, bytesReduced, rowsPredicted, treesEvaluated,
+                treesSkipped }) {
+            adder.reset();
+        }
+        treeDepths.reset();
+        leafCounts.reset();
+        predictionMicros.reset();
+        threadBuilds.clear();
+    }
+
+}
+
+/**
+ * A histogram of non-negative longs in power of two buckets: bucket 0 counts
+ * zeros and bucket b counts values in [2^(b-1), 2^b).
+ */
+class Histogram {
+
+    /** The count of each bucket. */
+    private final LongAdder[] buckets = new LongAdder[64];
+
+    Histogram() {
+        for (int b = 0; b < buckets.length; b++) {
+            buckets[b] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value A non-negative value to count.
+     */
+    void record(long value) {
+        buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+    }
+
+    /**
+     * @return The count of each bucket, up to the last one that isn't empty.
+     */
+    long[] counts() {
+        long[] counts = new long[buckets.length];
+        int length = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            counts[b] = buckets[b].sum();
+            if (counts[b] > 0) {
+                length = b + 1;
+            }
+        }
+        return Arrays.copyOf(counts, length);
+    }
+
+    /**
+     * @return The number of values counted.
+     */
+    long total() {
+        long total = 0;
+        for (LongAdder bucket : buckets) {
+            total += bucket.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param p     A percentile, from 0 to 100.
+     * @return      The largest value in the bucket holding that percentile;
+     *              0 if nothing has been counted.
+     */
+    long percentile(double p) {
+        long[] counts = counts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        long rank = (long)Math.ceil(p / 100 * total);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank && seen > 0) {
+                return b == 0 ? 0 : (1L << b) - 1;
+            }
+        }
+        return 0;
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * The training and inference metrics of ForestMetrics, as seen over JMX.
+ * Times are totals across every thread, so they can add up to more than the
+ * time that passed.  Histograms are bucketed by powers of two: bucket 0
+ * counts zeros and bucket b counts values in [2^(b-1), 2^b).
+ */
+public interface ForestMetricsMBean {
+
+    /**
+     * @return The number of trees grown.
+     */
+    long getTreesGrown();
+
+    /**
+     * @return The number of nodes in the trees grown, leaves included.
+     */
+    long getNodesGrown();
+
+    /**
+     * @return The number of leaves in the trees grown.
+     */
+    long getLeavesGrown();
+
+    /**
+     * @return How many trees had each depth.
+     */
+    long[] getTreeDepthHistogram();
+
+    /**
+     * @return How many trees had each number of leaves.
+     */
+    long[] getLeafCountHistogram();
+
+    /**
+     * @return The time spent choosing the attribute to split nodes on.
+     */
+    long getSplitEvaluationMillis();
+
+    /**
+     * @return The time spent partitioning rows between children.
+     */
+    long getPartitionMillis();
+
+    /**
+     * @return The time spent drawing bootstrap samples.
+     */
+    long getBootstrapMillis();
+
+    /**
+     * @return For each thread that grew trees: how many, and how long they
+     *         took.
+     */
+    String[] getThreadTreeBuildTimes();
+
+    /**
+     * @return The bytes of trees this process sent to rank 0.
+     */
+    long getBytesGathered();
+
+    /**
+     * @return The bytes of trees this process broadcast.
+     */
+    long getBytesBroadcast();
+
+    /**
+     * @return The bytes of votes and histograms this process sent to
+     *         reductions.
+     */
+    long getBytesReduced();
+
+    /**
+     * @return The number of batch prediction calls.
+     */
+    long getPredictions();
+
+    /**
+     * @return The number of rows predicted.
+     */
+    long getRowsPredicted();
+
+    /**
+     * @return How many batch prediction calls took each number of microseconds.
+     */
+    long[] getPredictionLatencyHistogramMicros();
+
+    /**
+     * @return The median latency of a batch prediction call, to within a factor
+     *         of two.
+     */
+    long getPredictionLatencyP50Micros();
+
+    /**
+     * @return The 99th percentile latency of a batch prediction call,
+     *         likewise.
+     */
+    long getPredictionLatencyP99Micros();
+
+    /**
+     * @return The number of trees walked by early-exit votes, counted
+     *         once register() has been called.
+     */
+    long getVoteTreesEvaluated();
+
+    /**
+     * @return The number of trees early-exit votes stopped before walking.
+     */
+    long getVoteTreesSkipped();
+
+    /**
+     * Set every metric back to zero.
+     */
+    void reset();
+
+}
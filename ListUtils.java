@@ -3,15 +3,42 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 
 /**
  * A collection of utility methods for lists.
+ *
+ * The random methods all take the generator to use, so that each thread (or
+ * tree) can have its own stream instead of sharing Math.random().
  */
 class ListUtils {
 
     /** Private constructor to enforce static class... */
     private ListUtils() {}
 
+    /**
+     * Make an independent random stream for one of many tasks, such as the
+     * trees of a forest.  The same seed and index always give the same
+     * stream, however the tasks are spread over threads or processes.
+     *
+     * @param seed      The master seed.
+     * @param index     The index of the task.
+     * @return          A new generator for that task alone.
+     */
+    public static SplittableRandom stream(long seed, int index) {
+        return new SplittableRandom(mix(seed + mix(index + 1L)));
+    }
+
+    /**
+     * Scramble the bits of a long (the MurmurHash3 finalizer), so that
+     * nearby seeds give unrelated streams.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
     public static <T> List<T> filter(List<T> ls, Predicate<T> p) {
         List<T> result = new ArrayList<T>();
         for (T e : ls) {
@@ -68,27 +95,64 @@ class ListUtils {
     /**
      * Pick a random element of a list.
      */
-    public static <T> T random(List<T> list) {
-        int i = (int)(Math.random() * list.size());
-        return list.get(i);
+    public static <T> T random(List<T> list, SplittableRandom random) {
+        return list.get(random.nextInt(list.size()));
     }
 
     /**
      * Sample n values from a list WITH replacement.
      */
-    public static <T> List<T> choices(List<T> source, int n) {
+    public static <T> List<T> choices(List<T> source, int n, SplittableRandom random) {
         List<T> result = new ArrayList<T>(n);
         for (int i = 0; i < n; i++) {
-            result.add(random(source));
+            result.add(random(source, random));
         }
         return result;
     }
 
+    /**
+     * Sample n indices from [0, size) WITH replacement, as a count of the
+     * times each index was chosen.
+     *
+     * @return An array of size counts summing to n.
+     */
+    public static int[] bootstrap(int size, int n, SplittableRandom random) {
+        int[] weights = new int[size];
+        for (int i = 0; i < n; i++) {
+            weights[random.nextInt(size)]++;
+        }
+        return weights;
+    }
+
+    /**
+     * Approximate a bootstrap without knowing the other indices: each of
+     * size indices is chosen a Poisson distributed number of times.  With
+     * mean n / N for N indices in all, the counts across every part of the
+     * indices sum to about n.
+     *
+     * @return An array of size counts.
+     */
+    public static int[] poissonBootstrap(int size, double mean, SplittableRandom random) {
+        int[] weights = new int[size];
+        double limit = Math.exp(-mean);
+        for (int i = 0; i < size; i++) {
+            // Knuth's method: count uniforms until their product drops below e^-mean.
+            int count = 0;
+            double product = random.nextDouble();
+            while (product > limit) {
+                count++;
+                product *= random.nextDouble();
+            }
+            weights[i] = count;
+        }
+        return weights;
+    }
+
     /**
      * Sample m values from a list WITHOUT replacement.
      */
     @SuppressWarnings("unchecked")
-    public static <T> List<T> sample(Collection<T> source, int m) {
+    public static <T> List<T> sample(Collection<T> source, int m, SplittableRandom random) {
         int n = source.size();
         if (n < m) {
             return new ArrayList<T>(source);
@@ -96,7 +160,7 @@ class ListUtils {
         List<T> result = new ArrayList<T>(m);
         T[] a = (T[])source.toArray();
         for (int i = 0; i < m; i++) {
-            int r = i + (int)(Math.random() * (n - i));
+            int r = i + random.nextInt(n - i);
             result.add(a[r]);
             a[r] = a[i];
         }
@@ -106,8 +170,21 @@ class ListUtils {
     /**
      * @return A new list with the elements in a random order.
      */
-    public static <T> List<T> shuffle(Collection<T> source) {
-        return sample(source, source.size());
+    public static <T> List<T> shuffle(Collection<T> source, SplittableRandom random) {
+        return sample(source, source.size(), random);
+    }
+
+    /**
+     * @return The indices [0, n) in a random order.
+     */
+    public static int[] permutation(int n, SplittableRandom random) {
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            int r = random.nextInt(i + 1);
+            result[i] = result[r];
+            result[r] = i;
+        }
+        return result;
     }
 
 }
@@ -0,0 +1,112 @@
+/**
+ * Tallies the out-of-bag votes of a forest: each tree votes only on the
+ * training rows its bootstrap left out, which gives an estimate of the
+ * forest's accuracy without holding any data back.
+ */
+public class OutOfBag<D> {
+
+    /** The training data. */
+    public final Dataset<D> data;
+
+    /** The number of decisions. */
+    private final int k;
+
+    /** The votes on each row: decision d on row r is votes[r * k + d]. */
+    final int[] votes;
+
+    /**
+     * @param data      The data the forest is trained on.
+     */
+    public OutOfBag(Dataset<D> data) {
+        this.data = data;
+        this.k = data.schema.numDecisions();
+        this.votes = new int[data.size() * k];
+    }
+
+    /**
+     * Add the votes of a tree on the rows it was not trained on.
+     *
+     * @param tree      The tree.
+     * @param weights   The bootstrap weights the tree was grown from.
+     */
+    void add(DecisionTree<D> tree, int[] weights) {
+        for (int r = 0; r < weights.length; r++) {
+            if (weights[r] == 0) {
+                votes[r * k + tree.leaf(data, r).code]++;
+            }
+        }
+    }
+
+    /**
+     * Add in the votes tallied by another OutOfBag on the same data.
+     *
+     * @param other     The other tally.
+     */
+    void addAll(OutOfBag<D> other) {
+        for (int i = 0; i < votes.length; i++) {
+            votes[i] += other.votes[i];
+        }
+    }
+
+    /**
+     * @param row       A row of the training data.
+     * @param decision  A decision code.
+     * @return          The number of out-of-bag votes for decision on row.
+     */
+    public int votes(int row, int decision) {
+        return votes[row * k + decision];
+    }
+
+    /**
+     * @param row   A row of the training data.
+     * @return      The decision code with the most out-of-bag votes on row,
+     *              the lowest on ties; -1 if every tree was trained on it.
+     */
+    public int decision(int row) {
+        int base = row * k;
+        int mode = 0;
+        int total = votes[base];
+        for (int d = 1; d < k; d++) {
+            total += votes[base + d];
+            if (votes[base + d] > votes[base + mode]) {
+                mode = d;
+            }
+        }
+        return total == 0 ? -1 : mode;
+    }
+
+    /**
+     * @return The number of rows with at least one out-of-bag vote.
+     */
+    public int numVoted() {
+        int n = 0;
+        for (int r = 0; r < data.size(); r++) {
+            if (decision(r) >= 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The number of rows whose out-of-bag decision is correct.
+     */
+    public int correct() {
+        int correct = 0;
+        for (int r = 0; r < data.size(); r++) {
+            if (decision(r) == data.label(r)) {
+                correct++;
+            }
+        }
+        return correct;
+    }
+
+    /**
+     * @return The fraction of the rows with out-of-bag votes that the votes
+     *         decide correctly; NaN if no row has any.
+     */
+    public double accuracy() {
+        return (double)correct() / numVoted();
+    }
+
+}
@@ -0,0 +1,308 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of a forest's decisions, keyed on encoded rows.
+ *
+ * Categorical data repeats the same rows a lot, and a hit skips walking
+ * every tree.  A key is the row's value codes packed one short each, with
+ * its hash worked out once, so looking a row up allocates just the key and
+ * two rows only match if every code does, -1 for an unknown value included.
+ * The entries are split into stripes by hash, each an LRU map behind its
+ * own lock, so threads looking up different rows rarely wait on each other.
+ * Hits, misses and evictions are counted in LongAdders for the same reason.
+ *
+ * A cache remembers which model it is filled for: the forest, or whatever
+ * object the caller passes to get() and put() to stand for it.  Looking up a
+ * row for any other model clears the cache and starts filling it for that
+ * one, so replacing a forest invalidates the cache without anyone having to
+ * say so.  Entries put for the old model after that are dropped.
+ */
+public class PredictionCache<D> {
+
+    /** The number of stripes; picked by the top four bits of the mixed hash. */
+    static final int STRIPES = 16;
+
+    /** The entries, split by hash. */
+    private final Stripe[] stripes;
+
+    /** The model the entries are for, and when it was adopted. */
+    private volatile Owner owner = new Owner(null);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * A model the cache has been filled for.  Entries are tagged with the
+     * Owner they were put under, so entries for an earlier adoption of the
+     * same model never count.
+     */
+    private static class Owner {
+
+        final Object model;
+
+        Owner(Object model) {
+            this.model = model;
+        }
+
+    }
+
+    /**
+     * An encoded row.
+     */
+    private static class Key {
+
+        final short[] codes;
+        final int hash;
+
+        Key(int[] row) {
+            codes = new short[row.length];
+            int h = 1;
+            for (int i = 0; i < row.length; i++) {
+                codes[i] = (short)row[i];
+                h = 31 * h + row[i];
+            }
+            hash = h ^ (h >>> 16);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return hash == other.hash && Arrays.equals(codes, other.codes);
+        }
+
+    }
+
+    /**
+     * A decision and the model it was made by.
+     */
+    private static class Cached {
+
+        final Owner owner;
+        final int decision;
+
+        Cached(Owner owner, int decision) {
+            this.owner = owner;
+            this.decision = decision;
+        }
+
+    }
+
+    /**
+     * One stripe: an LRU map that drops its eldest entry when it is full.
+     */
+    @SuppressWarnings("serial")
+    private static class Stripe extends LinkedHashMap<Key,Cached> {
+
+        final int capacity;
+        final LongAdder evictions;
+
+        Stripe(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<Key,Cached> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * @param capacity  The most decisions to keep.
+     */
+    public PredictionCache(int capacity) {
+        stripes = new Stripe[STRIPES];
+        int perStripe = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        for (int s = 0; s < STRIPES; s++) {
+            stripes[s] = new Stripe(perStripe, evictions);
+        }
+    }
+
+    /**
+     * Look up a model's decision on a row, first clearing the cache if it was
+     * filled for another model.
+     *
+     * @param model     The forest, or whatever stands for it.
+     * @param row       The value code of each attribute.
+     * @return          The decision code; -1 if it isn't cached.
+     */
+    public int get(Object model, int[] row) {
+        Owner o = owner;
+        if (o.model != model) {
+            o = adopt(model);
+        }
+        Key key = new Key(row);
+        Stripe stripe = stripe(key);
+        Cached cached;
+        synchronized (stripe) {
+            cached = stripe.get(key);
+        }
+        if (cached == null || cached.owner != o) {
+            misses.increment();
+            return -1;
+        }
+        hits.increment();
+        return cached.decision;
+    }
+
+    /**
+     * Remember a model's decision on a row.  It is dropped if the cache has
+     * moved on to another model.
+     *
+     * @param model     The forest, or whatever stands for it.
+     * @param row       The value code of each attribute.
+     * @param decision  The decision code.
+     */
+    public void put(Object model, int[] row, int decision) {
+        Owner o = owner;
+        if (o.model != model) {
+            return;
+        }
+        Key key = new Key(row);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, new Cached(o, decision));
+        }
+    }
+
+    /**
+     * Get a forest's decision on a row, from the cache if it is there.
+     *
+     * @param forest    The forest.
+     * @param row       The value code of each attribute.
+     * @return          The decision code.
+     */
+    public int predict(CompiledForest<D> forest, int[] row) {
+        int decision = get(forest, row);
+        if (decision < 0) {
+            decision = forest.predict(row);
+            put(forest, row, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * Get a forest's decisions on a batch of rows, scoring only the ones that
+     * aren't cached, together.
+     *
+     * @param forest    The forest.
+     * @param rows      The value codes of each row.
+     * @param decisions Filled with the decision code of each row.
+     */
+    public void predictBatch(CompiledForest<D> forest, int[][] rows, int[] decisions) {
+        // Look every row up, collecting the misses.
+        int[] missed = new int[rows.length];
+        int numMissed = 0;
+        for (int i = 0; i < rows.length; i++) {
+            decisions[i] = get(forest, rows[i]);
+            if (decisions[i] < 0) {
+                missed[numMissed++] = i;
+            }
+        }
+        if (numMissed == 0) {
+            return;
+        }
+        // Score the misses as a batch of their own.
+        int[][] misses = new int[numMissed][];
+        for (int j = 0; j < numMissed; j++) {
+            misses[j] = rows[missed[j]];
+        }
+        int[] votes = new int[numMissed * forest.schema.numDecisions()];
+        int[] scored = new int[numMissed];
+        forest.predictBatch(misses, votes, scored);
+        for (int j = 0; j < numMissed; j++) {
+            decisions[missed[j]] = scored[j];
+            put(forest, misses[j], scored[j]);
+        }
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The number of decisions cached.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of times the cache was cleared for a new model.
+     */
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public String toString() {
+        long h = hits();
+        long m = misses();
+        return String.format("cache size=%d hits=%d misses=%d hit_rate=%.2f%% "
+                + "evictions=%d invalidations=%d", size(), h, m,
+                h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions(), invalidations());
+    }
+
+    /**
+     * Start filling the cache for another model.
+     *
+     * @return The new owner.
+     */
+    private synchronized Owner adopt(Object model) {
+        if (owner.model != model) {
+            if (owner.model != null) {
+                invalidations.increment();
+            }
+            owner = new Owner(model);
+            clear();
+        }
+        return owner;
+    }
+
+    private Stripe stripe(Key key) {
+        // Mix the hash first: its top bits barely change between rows that
+        // differ only in their last few codes.
+        return stripes[(key.hash * 0x9E3779B9) >>> 28];
+    }
+
+}
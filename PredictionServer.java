@@ -0,0 +1,585 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves predictions from a saved forest on a loopback socket.
+ *
+ * Each connection sends one request per line and gets one reply line back
+ * for each, in order:
+ *
+ *   v1,v2,...,vn   the attribute values of a row, as in a data file but
+ *                  without the decision; the reply is the forest's decision
+ *                  or "ERROR <message>".  Values the model has never seen
+ *                  take the trees' fallbacks.
+ *   LOAD <file>    load another model file from the model directory and
+ *                  swap it in; the reply is "OK <trees> trees" or "ERROR
+ *                  <message>".  Without a model directory, LOAD is off.
+ *   STATS          the latency percentiles for each batch size, one line
+ *                  each, then "END".
+ *
+ * Rows from every connection go into one bounded queue, which blocks the
+ * connections when it is full.  A batching thread takes a row, waits at most
+ * maxWait for more to arrive, up to maxBatch of them, and hands the batch
+ * to the ForestEngine's threads to be encoded and scored with
+ * predictBatch(), then goes back to collecting the next batch.  A batch
+ * reads the model once, so swapping in a new one never mixes models within
+ * a batch, and batches already taken finish on the model they started with.
+ *
+ * With a PredictionCache, only the rows of a batch that miss it are scored,
+ * and swapping the model clears it.  STATS then ends with its counts.
+ *
+ * LOAD only takes the plain name of a file in the model directory, so a
+ * client can't read other files, and its error reply is the same whether
+ * or not the file exists.
+ */
+public class PredictionServer implements java.io.Closeable {
+
+    /** The model being served. */
+    private final AtomicReference<CompiledForest<String>> model;
+
+    /** The rows waiting to be batched. */
+    private final BlockingQueue<Request> queue;
+
+    /** The most rows scored together. */
+    private final int maxBatch;
+
+    /** The longest a row waits for others to batch with, in nanoseconds. */
+    private final long maxWait;
+
+    /** The threads that score the batches. */
+    private final ForestEngine engine;
+
+    /** Latencies by batch size. */
+    private final LatencyStats stats;
+
+    /** Decisions on rows seen before; null not to cache. */
+    private final PredictionCache<String> cache;
+
+    /** The directory LOAD reads models from; null to turn LOAD off. */
+    private final File modelDir;
+
+    /** The socket connections are accepted on. */
+    private final ServerSocket socket;
+
+    /** Takes rows off the queue and starts their batches. */
+    private final Thread batcher;
+
+    /** Whether close() has been called. */
+    private volatile boolean closed;
+
+    /**
+     * A row waiting for its decision.
+     */
+    private static class Request {
+
+        /** The attribute values. */
+        final String[] fields;
+
+        /** When the request arrived, from System.nanoTime(). */
+        final long start = System.nanoTime();
+
+        /** Released when the reply is set. */
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** The reply line; read once done is released. */
+        String reply;
+
+        Request(String[] fields) {
+            this.fields = fields;
+        }
+
+        void reply(String reply) {
+            this.reply = reply;
+            done.countDown();
+        }
+
+        boolean replied() {
+            return done.getCount() == 0;
+        }
+
+    }
+
+    /**
+     * Start a server on a loopback port.
+     *
+     * @param forest    The model to serve.
+     * @param port      The port to listen on; 0 for any free one.
+     * @param maxBatch  The most rows to score together.
+     * @param maxWait   The longest a row waits for others to batch with, in
+     *                  microseconds.
+     * @param capacity  The most rows that can wait to be batched.
+     * @param engine    The threads to score with.
+     * @throws IOException If the port can't be listened on.
+     */
+    public PredictionServer(CompiledForest<String> forest, int port, int maxBatch,
+            long maxWait, int capacity, ForestEngine engine) throws IOException
+    {
+        this(forest, port, maxBatch, maxWait, capacity, engine, null);
+    }
+
+    /**
+     * Start a server on a loopback port, caching its decisions.
+     *
+     * @param forest    The model to serve.
+     * @param port      The port to listen on; 0 for any free one.
+     * @param maxBatch  The most rows to score together.
+     * @param maxWait   The longest a row waits for others to batch with, in
+     *                  microseconds.
+     * @param capacity  The most rows that can wait to be batched.
+     * @param engine    The threads to score with.
+     * @param cache     The cache of decisions; null not to cache.
+     * @throws IOException If the port can't be listened on.
+     */
+    public PredictionServer(CompiledForest<String> forest, int port, int maxBatch,
+            long maxWait, int capacity, ForestEngine engine,
+            PredictionCache<String> cache) throws IOException
+    {
+        this(forest, port, maxBatch, maxWait, capacity, engine, cache, null);
+    }
+
+    /**
+     * Start a server on a loopback port, caching its decisions and letting
+     * clients LOAD models from a directory.
+     *
+     * @param forest    The model to serve.
+     * @param port      The port to listen on; 0 for any free one.
+     * @param maxBatch  The most rows to score together.
+     * @param maxWait   The longest a row waits for others to batch with, in
+     *                  microseconds.
+     * @param capacity  The most rows that can wait to be batched.
+     * @param engine    The threads to score with.
+     * @param cache     The cache of decisions; null not to cache.
+     * @param modelDir  The directory LOAD reads models from; null to turn
+     *                  LOAD off.
+     * @throws IOException If the port can't be listened on, or modelDir
+     *                     can't be resolved.
+     */
+    public PredictionServer(CompiledForest<String> forest, int port, int maxBatch,
+            long maxWait, int capacity, ForestEngine engine,
+            PredictionCache<String> cache, File modelDir) throws IOException
+    {
+        this.cache = cache;
+        this.modelDir = modelDir == null ? null : modelDir.getCanonicalFile();
+        this.model = new AtomicReference<CompiledForest<String>>(forest);
+        this.queue = new ArrayBlockingQueue<Request>(capacity);
+        this.maxBatch = maxBatch;
+        this.maxWait = TimeUnit.MICROSECONDS.toNanos(maxWait);
+        this.engine = engine;
+        this.stats = new LatencyStats(maxBatch);
+        this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+        // Accept connections, each handled by a thread of its own.  The
+        // acceptor isn't a daemon, so it keeps the JVM up until close().
+        Thread acceptor = new Thread("PredictionServer acceptor") {
+            public void run() {
+                while (!closed) {
+                    try {
+                        final Socket connection = socket.accept();
+                        Thread handler = new Thread("PredictionServer connection") {
+                            public void run() {
+                                serve(connection);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        if (!closed) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+        acceptor.start();
+
+        this.batcher = new Thread("PredictionServer batcher") {
+            public void run() {
+                batch();
+            }
+        };
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /**
+     * @return The port the server is listening on.
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Swap in another model.  Batches that have already started finish on
+     * the old one, and no request is dropped.
+     *
+     * @param forest    The new model.
+     * @return          The model that was being served.
+     */
+    public CompiledForest<String> swap(CompiledForest<String> forest) {
+        return model.getAndSet(forest);
+    }
+
+    /**
+     * @return The latencies by batch size so far.
+     */
+    public LatencyStats stats() {
+        return stats;
+    }
+
+    /**
+     * Stop accepting connections and batching rows, letting the JVM exit.
+     * Rows still waiting to be batched get an error reply; batches already
+     * started finish.
+     */
+    public void close() throws IOException {
+        closed = true;
+        batcher.interrupt();
+        socket.close();
+        failQueued();
+    }
+
+    /**
+     * Reply with an error to every row waiting in the queue, once closed.
+     */
+    private void failQueued() {
+        List<Request> abandoned = new ArrayList<Request>();
+        queue.drainTo(abandoned);
+        fail(abandoned, "Server is closed.");
+    }
+
+    /**
+     * Reply with an error to each request that has no reply yet.
+     */
+    private static void fail(List<Request> requests, String error) {
+        for (Request request : requests) {
+            if (!request.replied()) {
+                request.reply("ERROR " + error);
+            }
+        }
+    }
+
+    /**
+     * Answer the requests on one connection until it is closed.
+     */
+    private void serve(Socket connection) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                        connection.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                        connection.getOutputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("STATS")) {
+                    out.write(stats.report());
+                    if (cache != null) {
+                        out.write(cache + "\n");
+                    }
+                    out.write("END\n");
+                } else if (line.startsWith("LOAD ")) {
+                    out.write(load(line.substring(5).trim()));
+                    out.write('\n');
+                } else {
+                    Request request = new Request(line.split(",", -1));
+                    queue.put(request);
+                    if (closed) {
+                        // close() may have drained the queue before the put.
+                        failQueued();
+                    }
+                    request.done.await();
+                    out.write(request.reply);
+                    out.write('\n');
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    /**
+     * Load a model file from the model directory and swap it in.
+     *
+     * @param name      The name of the file in the model directory.
+     * @return          The reply line.
+     */
+    private String load(String name) {
+        if (modelDir == null) {
+            return "ERROR LOAD is turned off.";
+        }
+        // Only a plain name, so the file can't be outside the directory.
+        if (name.isEmpty() || name.equals(".") || name.equals("..")
+                || !new File(name).getName().equals(name)) {
+            return "ERROR Can't load model " + name + ".";
+        }
+        try {
+            CompiledForest<String> forest = CompiledForest.load(
+                    new File(modelDir, name).getPath());
+            swap(forest);
+            return "OK " + forest.size() + " trees";
+        } catch (IOException e) {
+            // Don't tell the client whether the file exists.
+            return "ERROR Can't load model " + name + ".";
+        } catch (RuntimeException e) {
+            return "ERROR Can't load model " + name + ".";
+        }
+    }
+
+    /**
+     * Collect rows into batches and start scoring them, until closed.
+     */
+    private void batch() {
+        List<Request> batch = new ArrayList<Request>();
+        try {
+            while (!closed) {
+                batch = new ArrayList<Request>(maxBatch);
+                Request first = queue.take();
+                batch.add(first);
+                long deadline = first.start + maxWait;
+                // Take whatever is already waiting, then wait out the rest.
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() == maxBatch || wait <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                start(batch);
+            }
+        } catch (InterruptedException e) {
+            // Closed, maybe with a batch half collected.
+            fail(batch, "Server is closed.");
+        }
+    }
+
+    /**
+     * Score a batch on the ForestEngine's threads.  If scoring fails, every
+     * row of the batch not yet answered gets an error reply, so no
+     * connection is left waiting.
+     */
+    private void start(final List<Request> batch) {
+        try {
+            engine.pool().execute(new Runnable() {
+                public void run() {
+                    try {
+                        score(batch);
+                    } catch (Throwable e) {
+                        fail(batch, "Scoring failed: " + e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(batch, "Server is closed.");
+        }
+    }
+
+    /**
+     * Encode and score a batch of rows with the current model, and reply to
+     * each of them.
+     */
+    private void score(List<Request> batch) {
+        CompiledForest<String> forest = model.get();
+        Schema<String> schema = forest.schema;
+        int numAttrs = schema.numAttrs();
+        // Encode the rows that can be, replying to the rest with an error.
+        int[][] rows = new int[batch.size()][];
+        List<Request> scored = new ArrayList<Request>(batch.size());
+        for (Request request : batch) {
+            int[] row = new int[numAttrs];
+            String error = encode(schema, request.fields, row);
+            if (error != null) {
+                request.reply("ERROR " + error);
+            } else {
+                rows[scored.size()] = row;
+                scored.add(request);
+            }
+        }
+        if (!scored.isEmpty()) {
+            int size = scored.size();
+            rows = Arrays.copyOf(rows, size);
+            int[] decisions = new int[size];
+            try {
+                if (cache != null) {
+                    cache.predictBatch(forest, rows, decisions);
+                } else {
+                    forest.predictBatch(rows, new int[size * schema.numDecisions()], decisions);
+                }
+            } catch (IllegalArgumentException e) {
+                // A model from before fallbacks can't score unknown values;
+                // score the rows alone so only those get an error.
+                for (int r = 0; r < size; r++) {
+                    try {
+                        decisions[r] = forest.predict(rows[r]);
+                    } catch (IllegalArgumentException unknown) {
+                        decisions[r] = -1;
+                        scored.get(r).reply("ERROR " + unknown.getMessage());
+                    }
+                }
+            }
+            for (int r = 0; r < size; r++) {
+                if (decisions[r] >= 0) {
+                    scored.get(r).reply(schema.decision(decisions[r]));
+                }
+            }
+        }
+        long now = System.nanoTime();
+        for (Request request : batch) {
+            stats.record(batch.size(), now - request.start);
+        }
+    }
+
+    /**
+     * Encode one row.  A value the model has never seen is encoded as -1,
+     * as Schema.encode() does, so the trees take their fallback for it.
+     *
+     * @param schema    The model's schema.
+     * @param fields    The attribute values.
+     * @param row       Filled with the value code of each attribute.
+     * @return          Why the row can't be encoded; null if it was.
+     */
+    private static String encode(Schema<String> schema, String[] fields, int[] row) {
+        if (fields.length != schema.numAttrs()) {
+            return "Expected " + schema.numAttrs() + " values but got "
+                + fields.length + ".";
+        }
+        for (int i = 0; i < fields.length; i++) {
+            row[i] = schema.valueCode(i, fields[i]);
+        }
+        return null;
+    }
+
+    /**
+     * Load a model file and serve it until killed.  main() returns once the
+     * server is up, and the acceptor thread keeps the JVM running.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 6) usage();
+
+        // Parse arguments.
+        String modelFile = args[0];
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int maxBatch = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long maxWait = args.length > 3 ? Long.parseLong(args[3]) : 200;
+        int capacity = args.length > 4 ? Integer.parseInt(args[4]) : 4096;
+        int cacheSize = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+
+        String modelDir = System.getProperty("forest.modelDir");
+
+        ForestMetrics.register();
+        CompiledForest<String> forest = CompiledForest.load(modelFile);
+        PredictionServer server = new PredictionServer(forest, port, maxBatch,
+                maxWait, capacity, ForestEngine.shared(),
+                cacheSize > 0 ? new PredictionCache<String>(cacheSize) : null,
+                modelDir == null ? null : new File(modelDir));
+        System.out.println("Serving " + forest.size() + " trees on 127.0.0.1:"
+                + server.port());
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java PredictionServer <model_file> [<port>"
+                + " [<max_batch> [<max_wait_us> [<queue_capacity> [<cache_size>]]]]]");
+        System.exit(1);
+    }
+
+}
+
+/**
+ * The latencies of recent requests, kept separately for each batch size so
+ * the cost of batching can be seen.  Only the last SAMPLES latencies of each
+ * size are kept.
+ */
+class LatencyStats {
+
+    /** The number of latencies kept per batch size. */
+    static final int SAMPLES = 4096;
+
+    /** The last latencies of each batch size, in nanoseconds, as a ring. */
+    private final long[][] samples;
+
+    /** The number of latencies ever recorded for each batch size. */
+    private final long[] counts;
+
+    /**
+     * @param maxBatch  The largest batch size.
+     */
+    LatencyStats(int maxBatch) {
+        this.samples = new long[maxBatch + 1][];
+        this.counts = new long[maxBatch + 1];
+    }
+
+    /**
+     * @param batchSize The size of the batch the request was scored in.
+     * @param latency   The time from its arrival to its reply, in nanoseconds.
+     */
+    synchronized void record(int batchSize, long latency) {
+        if (samples[batchSize] == null) {
+            samples[batchSize] = new long[SAMPLES];
+        }
+        samples[batchSize][(int)(counts[batchSize] % SAMPLES)] = latency;
+        counts[batchSize]++;
+    }
+
+    /**
+     * @param batchSize A batch size.
+     * @param p         A percentile, from 0 to 100.
+     * @return          The latency of that percentile at that batch size, in
+     *                  nanoseconds; 0 if there are none.
+     */
+    synchronized long percentile(int batchSize, double p) {
+        int n = (int)Math.min(counts[batchSize], SAMPLES);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples[batchSize], n);
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(p / 100 * n);
+        return sorted[Math.max(0, Math.min(n, rank) - 1)];
+    }
+
+    /**
+     * @return A line for each batch size seen: its request count and p50 and
+     *         p99 latencies in microseconds.
+     */
+    synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (int size = 1; size < counts.length; size++) {
+            if (counts[size] > 0) {
+                report.append(String.format("batch=%d requests=%d p50=%dus p99=%dus\n",
+                            size, counts[size], percentile(size, 50) / 1000,
+                            percentile(size, 99) / 1000));
+            }
+        }
+        return report.toString();
+    }
+
+}
@@ -1,7 +1,8 @@
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.SplittableRandom;
 
 /**
  * A RandomForest is simply a collection of DecisionTrees.
@@ -11,10 +12,9 @@ import java.util.Map;
 public class RandomForest<D> implements java.io.Serializable {
 
     /**
-     * Grows a random forest from a list of samples.
+     * Grows a random forest from a dataset.
      *
-     * @param attrs     The attributes and their possible values.
-     * @param samples   The sample data to train on.
+     * @param data      The sample data to train on.
      * @param size      The number of trees in the forest.
      * @param n         The number of sample records to choose with replacement
      *                  for each tree.
@@ -23,30 +23,219 @@ public class RandomForest<D> implements java.io.Serializable {
      * @return          A new RandomForest.
      */
     public static <D> RandomForest<D> growRandomForest(
-            Map<String,List<String>> attrs,
-            List<Sample<D>> samples,
+            Dataset<D> data,
             int size,
             int n,
             int m) throws Exception
+    {
+        return growRandomForest(data, size, n, m, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Grows a random forest from a dataset, reproducibly.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed; the same seed always grows the same
+     *                  forest, whichever version of growRandomForest is used.
+     * @return          A new RandomForest.
+     */
+    public static <D> RandomForest<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed) throws Exception
+    {
+        return growRandomForest(data, size, n, m, seed, null);
+    }
+
+    /**
+     * Grows a random forest from a dataset, tallying out-of-bag votes.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest.
+     */
+    public static <D> RandomForest<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            OutOfBag<D> oob) throws Exception
+    {
+        return growRandomForest(data, size, n, m, seed, TreeLimits.NONE, oob);
+    }
+
+    /**
+     * Grows a random forest from a dataset, with limits on the trees.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest.
+     */
+    public static <D> RandomForest<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            TreeLimits limits,
+            OutOfBag<D> oob) throws Exception
     {
         List<DecisionTree<D>> trees = new ArrayList<DecisionTree<D>>(size);
         for (int i = 0; i < size; i++) {
-            List<Sample<D>> sampleChoices = ListUtils.choices(samples, n);
-            trees.add(DecisionTree.growDecisionTree(attrs, sampleChoices, m));
+            trees.add(growTree(data, n, m, seed, i, limits, false, oob));
         }
-        return new RandomForest<D>(trees);
+        return new RandomForest<D>(data.schema, trees);
     }
 
+    /**
+     * Grow one tree of a forest from its own random stream, so that tree i
+     * for a given seed comes out the same whichever thread or process grows
+     * it.
+     *
+     * @param data      The sample data to train on.
+     * @param n         The number of sample records to choose with replacement.
+     * @param m         The number of attributes to choose from at each node.
+     * @param seed      The master seed of the forest.
+     * @param i         The index of the tree in the forest.
+     * @return          A new DecisionTree.
+     */
+    static <D> DecisionTree<D> growTree(Dataset<D> data, int n, int m, long seed, int i) {
+        return growTree(data, n, m, seed, i, TreeLimits.NONE, false, null);
+    }
+
+    /**
+     * Grow one tree of a forest, optionally forking tasks for its large
+     * nodes.  The tree is the same either way.
+     *
+     * @param data      The sample data to train on.
+     * @param n         The number of sample records to choose with replacement.
+     * @param m         The number of attributes to choose from at each node.
+     * @param seed      The master seed of the forest.
+     * @param i         The index of the tree in the forest.
+     * @param limits    When to stop splitting nodes.
+     * @param parallel  Whether to fork tasks; if so, this must be called from
+     *                  within a ForkJoinPool.
+     * @param oob       Gets the tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new DecisionTree.
+     */
+    static <D> DecisionTree<D> growTree(Dataset<D> data, int n, int m, long seed,
+            int i, TreeLimits limits, boolean parallel, OutOfBag<D> oob)
+    {
+        long start = System.nanoTime();
+        SplittableRandom random = ListUtils.stream(seed, i);
+        int[] weights = ListUtils.bootstrap(data.size(), n, random);
+        ForestMetrics.bootstrapped(System.nanoTime() - start);
+        DecisionTree<D> tree = new TreeGrower<D>(data, weights, m, limits, random,
+                parallel).grow();
+        ForestMetrics.treeGrown(tree, System.nanoTime() - start);
+        if (oob != null) {
+            oob.add(tree, weights);
+        }
+        return tree;
+    }
+
+    /** The dictionaries the trees' attribute and decision codes refer to. */
+    public Schema<D> schema;
+
     /** The trees in this forest. */
     public List<DecisionTree<D>> trees;
 
+    /** Decisions already made by decide(int[]); null not to cache them. */
+    private transient PredictionCache<D> cache;
+
+    /** The last result of compile(); null until it is first called. */
+    private transient CompiledForest<D> compiled;
+
+    /** The schema and trees compiled was compiled from, to tell if it's stale. */
+    private transient Object[] compiledFrom;
+
     /**
+     * @param schema    The schema of the data the trees were grown from.
      * @param trees     The trees in this forest.
      */
-    protected RandomForest(List<DecisionTree<D>> trees) {
+    protected RandomForest(Schema<D> schema, List<DecisionTree<D>> trees) {
+        this.schema = schema;
         this.trees = trees;
     }
 
+    /**
+     * Gets the mode decision of the trees in this forest on an encoded row.
+     * Stops walking trees once the rest can't change the decision.
+     *
+     * @param row       The value code of each attribute.
+     * @return          The decision of this forest on the row.
+     */
+    public D decide(int[] row) {
+        // The cache is filled for the trees list, so replacing it clears it.
+        PredictionCache<D> cache = this.cache;
+        if (cache != null) {
+            int d = cache.get(trees, row);
+            if (d >= 0) {
+                return schema.decision(d);
+            }
+        }
+        int mode = vote(row, 1).code();
+        if (cache != null) {
+            cache.put(trees, row, mode);
+        }
+        return schema.decision(mode);
+    }
+
+    /**
+     * Let the trees vote on an encoded row, in order, until the rest of them
+     * can't change the decision or it is as sure as asked for.
+     *
+     * @param row           The value code of each attribute.
+     * @param confidence    How sure the vote must be to stop early, from 0 to
+     *                      1; 1 gives the same decision as every tree voting.
+     * @return              The vote, with how many trees were evaluated.
+     */
+    public Vote<D> vote(int[] row, double confidence) {
+        Vote<D> vote = new Vote<D>(schema, trees.size(), confidence);
+        for (DecisionTree<D> tree : trees) {
+            if (vote.add(tree.leaf(row).code)) {
+                break;
+            }
+        }
+        ForestMetrics.voted(vote.evaluated(), trees.size());
+        return vote;
+    }
+
+    /**
+     * Cache the decisions of decide(), so rows seen before skip walking the
+     * trees.  The cache is cleared when trees is replaced, but not when the
+     * list is changed in place.
+     *
+     * @param cache     The cache to use; null to stop caching.
+     */
+    public void setCache(PredictionCache<D> cache) {
+        this.cache = cache;
+    }
+
     /**
      * Gets the mode decision of the trees in this forest on the sample.
      *
@@ -55,11 +244,61 @@ public class RandomForest<D> implements java.io.Serializable {
      * @return          The decision of this forest on the sample.
      */
     public D decide(Sample<D> sample) {
-        Counter<D> decisions = new Counter<D>();
+        return decide(schema.encode(sample.choices));
+    }
+
+    /**
+     * Flatten this forest into primitive arrays for fast prediction.  The
+     * result is kept and given out again until the schema or trees change,
+     * whether by being replaced or changed in place.
+     *
+     * @return          A CompiledForest that decides the same as this one.
+     */
+    public synchronized CompiledForest<D> compile() {
+        // Check the trees are the same objects as last time, in order.
+        Object[] from = new Object[trees.size() + 1];
+        from[0] = schema;
+        int i = 1;
         for (DecisionTree<D> tree : trees) {
-            decisions.add(tree.decide(sample.choices));
+            from[i++] = tree;
+        }
+        if (compiled == null || !Arrays.equals(from, compiledFrom)) {
+            compiled = CompiledForest.compile(schema, trees);
+            compiledFrom = from;
         }
-        return decisions.mode();
+        return compiled;
+    }
+
+    /**
+     * Write this forest to a compact binary model file; see CompiledForest
+     * for the format.
+     *
+     * @param file      The file to write.
+     */
+    public void save(String file) throws IOException {
+        compile().save(file);
+    }
+
+    /**
+     * Load a forest saved by save(), memory-mapping the file rather than
+     * rebuilding the trees as objects.
+     *
+     * @param file      The file to read.
+     * @return          A CompiledForest that decides as the saved forest did.
+     */
+    public static CompiledForest<String> load(String file) throws IOException {
+        return CompiledForest.load(file);
+    }
+
+    /**
+     * Run a dataset against this forest.
+     *
+     * @param data      The test data to evaluate the forest with; must share
+     *                  this forest's schema.
+     * @return          The number of correct decisions by this forest.
+     */
+    public int test(Dataset<D> data) throws Exception {
+        return compile().test(data, 0, data.size());
     }
 
     /**
@@ -82,7 +321,8 @@ public class RandomForest<D> implements java.io.Serializable {
      * Parse input data, and time the construction of a random forest.
      */
     public static void main(String[] args) throws Exception {
-        if (args.length < 4 || args.length > 5) usage();
+        if (args.length < 4 || args.length > 6) usage();
+        ForestMetrics.register();
 
         // Parse arguments.
         int size = Integer.parseInt(args[0]);
@@ -95,23 +335,25 @@ public class RandomForest<D> implements java.io.Serializable {
         } else {
             split = 0.75;
         }
+        long seed = parseSeed(args);
+        TreeLimits limits = TreeLimits.fromProperties();
 
-        // Read samples and attrs from the file.
-        Map<String,List<String>> attrs = new HashMap<String,List<String>>();
-        List<Sample<String>> data = RandomForestInput.readData(dataFile, attrs);
-        data = ListUtils.shuffle(data);
+        // Read the samples from the file.
+        Dataset<String> data = RandomForestInput.readDataset(dataFile)
+            .shuffle(new SplittableRandom(seed));
 
         // Split into training and testing data.
         int numTraining = (int)(data.size() * split);
-        List<Sample<String>> trainingData = data.subList(0, numTraining);
-        List<Sample<String>> testData = data.subList(numTraining, data.size());
+        Dataset<String> trainingData = data.range(0, numTraining);
+        Dataset<String> testData = data.range(numTraining, data.size());
 
         // Start timing.
         long t1 = System.currentTimeMillis();
 
-        // Grow the forest.
+        // Grow the forest, keeping track of its out-of-bag votes.
+        OutOfBag<String> oob = new OutOfBag<String>(trainingData);
         RandomForest<String> forest = RandomForest
-            .<String>growRandomForest(attrs, trainingData, size, n, m);
+            .<String>growRandomForest(trainingData, size, n, m, seed, limits, oob);
 
         // Stop timing training, start timing testing.
         long t2 = System.currentTimeMillis();
@@ -125,17 +367,59 @@ public class RandomForest<D> implements java.io.Serializable {
         // Print results.
         System.out.println(trainingData.size() + " samples used to train the forest.");
         System.out.println(testData.size() + " samples used to test the forest.");
-        double percent = 100.0 * correct / testData.size();
-        System.out.printf("%.2f%% (%d/%d) tests passed.\n",
-                percent, correct, testData.size());
+        printTests(correct, testData.size());
+        printOutOfBag(oob);
         System.out.println("Forest construction time: " + (t2 - t1) + " ms");
         System.out.println("Forest testing time: " + (t3 - t2) + " ms");
+        System.out.println("Seed: " + seed);
+
+    }
+
+    /**
+     * Print the test accuracy of a forest, unless there was no test data, as
+     * when the split puts every row in the training data.
+     */
+    protected static void printTests(int correct, int numTested) {
+        if (numTested > 0) {
+            System.out.printf("%.2f%% (%d/%d) tests passed.\n",
+                    100.0 * correct / numTested, correct, numTested);
+        }
+    }
+
+    /**
+     * Print the out-of-bag accuracy of a forest.
+     */
+    protected static void printOutOfBag(OutOfBag<?> oob) {
+        printOutOfBag(oob.correct(), oob.numVoted());
+    }
 
+    /**
+     * Print an out-of-bag accuracy from its counts.
+     */
+    protected static void printOutOfBag(int correct, int numVoted) {
+        if (numVoted == 0) {
+            // Too few trees for any row to be left out of one's bootstrap.
+            System.out.println("No out-of-bag decisions.");
+            return;
+        }
+        System.out.printf("%.2f%% (%d/%d) out-of-bag decisions correct.\n",
+                100.0 * correct / numVoted, correct, numVoted);
+    }
+
+    /**
+     * @param args  The command line arguments.
+     * @return      The seed given as the sixth argument, or a random one.
+     */
+    protected static long parseSeed(String[] args) {
+        if (args.length > 5) {
+            return Long.parseLong(args[5]);
+        }
+        return new SplittableRandom().nextLong();
     }
 
     protected static void usage() {
         System.err.println("Usage: java <forest_size> <n_sample_records> <m_attributes>"
-                + " <data_file> [<split_training_test>]");
+                + " <data_file> [<split_training_test> [<seed>]]");
         System.exit(1);
     }
 
@@ -1,14 +1,18 @@
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.rit.mp.IntegerBuf;
+import edu.rit.mp.LongBuf;
 import edu.rit.mp.ObjectBuf;
 import edu.rit.mp.buf.IntegerItemBuf;
+import edu.rit.mp.buf.LongItemBuf;
 import edu.rit.mp.buf.ObjectItemBuf;
 import edu.rit.pj.Comm;
+import edu.rit.pj.CommStatus;
 import edu.rit.pj.IntegerForLoop;
 import edu.rit.pj.ParallelRegion;
 import edu.rit.pj.ParallelTeam;
@@ -25,10 +29,9 @@ public class RandomForestCluster<D> extends RandomForestSmp<D>
     implements java.io.Serializable {
 
     /**
-     * Grows a random forest from a list of samples.
+     * Grows a random forest from a dataset.
      *
-     * @param attrs     The attributes and their possible values.
-     * @param samples   The sample data to train on.
+     * @param data      The sample data to train on.
      * @param size      The number of trees in the forest.
      * @param n         The number of sample records to choose with replacement
      *                  for each tree.
@@ -37,29 +40,125 @@ public class RandomForestCluster<D> extends RandomForestSmp<D>
      * @return          A new RandomForest.
      */
     public static <D> RandomForestCluster<D> growRandomForest(
-            Map<String,List<String>> attrs,
-            List<Sample<D>> samples,
+            Dataset<D> data,
             int size,
             int n,
             int m)
     {
+        return growRandomForest(data, new Range(0, size - 1), n, m,
+                new SplittableRandom().nextLong(), TreeLimits.NONE, null);
+    }
+
+    /**
+     * Grows some of the trees of a random forest from a dataset.
+     *
+     * @param data      The sample data to train on.
+     * @param range     The indices of the trees to grow.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed; tree i is the same as tree i of any
+     *                  other forest grown with this seed and limits.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest of range.length() trees.
+     */
+    public static <D> RandomForestCluster<D> growRandomForest(
+            Dataset<D> data,
+            Range range,
+            int n,
+            int m,
+            long seed,
+            TreeLimits limits,
+            OutOfBag<D> oob)
+    {
+        List<DecisionTree<D>> trees = new ArrayList<DecisionTree<D>>(range.length());
+        for (int i = range.lb(); i <= range.ub(); i++) {
+            trees.add(growTree(data, n, m, seed, i, limits, false, oob));
+        }
+        return new RandomForestCluster<D>(data.schema, trees);
+    }
+
+    /**
+     * Grows a random forest from data sharded across processors, every
+     * processor growing every tree together; see DistributedTreeGrower.
+     * Each processor must call this with its own shard, and the shards must
+     * share a schema, as from Schema.merge() and Dataset.recode().
+     *
+     * Since no processor knows every row, the bootstrap gives each row a
+     * Poisson distributed weight with mean n over the total number of rows,
+     * which chooses about n rows in all.
+     *
+     * @param world     The processors holding the shards.
+     * @param data      This processor's shard of the sample data.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree, across all of the shards.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed; the same on every processor.
+     * @param limits    When to stop splitting the nodes of each tree; the
+     *                  same on every processor.
+     * @param oob       Gets each tree's votes on the rows of this shard it was
+     *                  not trained on; null not to keep track.
+     * @return          The whole forest, the same on every processor.
+     */
+    public static <D> RandomForestCluster<D> growShardedForest(
+            Comm world,
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            TreeLimits limits,
+            OutOfBag<D> oob) throws IOException
+    {
+        // Find the total number of rows.
+        IntegerItemBuf rowsBuf = IntegerBuf.buffer(data.size());
+        world.allReduce(rowsBuf, IntegerOp.SUM);
+        double mean = (double)n / rowsBuf.item;
+
         List<DecisionTree<D>> trees = new ArrayList<DecisionTree<D>>(size);
         for (int i = 0; i < size; i++) {
-            List<Sample<D>> sampleChoices = ListUtils.choices(samples, n);
-            trees.add(DecisionTree.growDecisionTree(attrs, sampleChoices, m));
+            // Every processor draws the attributes from the same stream, and
+            // the weights of its own rows from a stream of its own.
+            long start = System.nanoTime();
+            SplittableRandom random = ListUtils.stream(seed, i);
+            int[] weights = ListUtils.poissonBootstrap(data.size(), mean,
+                    ListUtils.stream(random.nextLong(), world.rank()));
+            ForestMetrics.bootstrapped(System.nanoTime() - start);
+            DecisionTree<D> tree = new DistributedTreeGrower<D>(
+                    world, data, weights, m, limits, random).grow();
+            ForestMetrics.treeGrown(tree, System.nanoTime() - start);
+            if (oob != null) {
+                oob.add(tree, weights);
+            }
+            trees.add(tree);
         }
-        return new RandomForestCluster<D>(trees);
+        return new RandomForestCluster<D>(data.schema, trees);
     }
 
     /**
+     * @param schema    The schema of the data the trees were grown from.
      * @param trees     The trees in this forest.
      */
-    private RandomForestCluster(List<DecisionTree<D>> trees) {
-        super(trees);
+    private RandomForestCluster(Schema<D> schema, List<DecisionTree<D>> trees) {
+        super(schema, trees);
     }
 
     /**
-     * The Main function for the cluster version
+     * The Main function for the cluster version.  Each processor grows and
+     * keeps its share of the trees, and every processor's votes on the test
+     * data are added up on rank 0; run with -Dforest.broadcast=true to send
+     * the whole forest to every processor instead, or with
+     * -Dforest.sharded=true to have each processor read only a shard of the
+     * data and grow every tree together.  With -Dforest.dynamic=true, rank
+     * 0 hands out batches of trees on demand instead of equal ranges.  The
+     * trees are limited as set by the forest.maxDepth, forest.minSamples,
+     * forest.minGain and forest.maxNodes properties; see TreeLimits.
+     *
      * @param size      The number of trees in the forest.
      * @param n         The number of sample records to choose with replacement
      *                  for each tree.
@@ -67,10 +166,12 @@ public class RandomForestCluster<D> extends RandomForestSmp<D>
      *                  from m attributes selected at random without replacement.
      * @param dataFile  The file that contains the dataset, samples to learn and test.
      * @param split     The split of training vs test samples. Defaults to 75% training.
+     * @param seed      The master seed. Defaults to one chosen by rank 0.
      */
     public static void main(String args[]) throws Exception {
         Comm.init(args);
-        if (args.length < 4 || args.length > 5) usage();
+        if (args.length < 4 || args.length > 6) usage();
+        ForestMetrics.register();
 
         // Initialize comm variables.
         Comm world = Comm.world();
@@ -89,78 +190,456 @@ public class RandomForestCluster<D> extends RandomForestSmp<D>
             split = 0.75;
         }
 
-        // Read samples and attrs from the file.
-        Map<String,List<String>> attrs = new HashMap<String,List<String>>();
-        List<Sample<String>> data = RandomForestInput.readData(dataFile, attrs);
-        //data = ListUtils.shuffle(data);
+        // Every processor has to use rank 0's seed.
+        LongItemBuf seedBuf = LongBuf.buffer(parseSeed(args));
+        world.broadcast(0, seedBuf);
+        long seed = seedBuf.item;
+        TreeLimits limits = TreeLimits.fromProperties();
+
+        // With sharded training each processor only reads part of the file.
+        if (SHARDED) {
+            runSharded(world, forestSize, n, m, dataFile, split, seed, limits);
+            return;
+        }
+
+        // Read the samples from the file.
+        long t0 = System.currentTimeMillis();
+        Dataset<String> data = RandomForestInput.readDataset(dataFile)
+            .shuffle(new SplittableRandom(seed));
 
         // Split into training and testing data.
         int numTraining = (int)(data.size() * split);
-        List<Sample<String>> trainingData = data.subList(0, numTraining);
-        List<Sample<String>> testData = data.subList(numTraining, data.size());
+        Dataset<String> trainingData = data.range(0, numTraining);
+        Dataset<String> testData = data.range(numTraining, data.size());
 
         // Ranges for tree construction.
         Range[] treeRanges = new Range(0, forestSize - 1).subranges(size);
         Range treeRange = treeRanges[rank];
 
-        // Ranges for test data splitting.
-        Range[] testRanges = new Range(0, testData.size() - 1).subranges(size);
-        Range testRange = testRanges[rank];
-
-        // Sub-list of test data that this processor will test with.
-        List<Sample<String>> testDataSlice = testData.subList(
-                testRange.lb(), testRange.ub() + 1);
-
         // Start timing.
         long t1 = System.currentTimeMillis();
 
-        // Grow the forest for this processor.
-        RandomForestCluster<String> forest = RandomForestCluster.<String>growRandomForest(
-                attrs, trainingData, treeRange.length(), n, m);
+        // Rank 0 hands out batches of trees when scheduling dynamically, and
+        // collects the other processors' trees as they finish them when
+        // broadcasting.
+        int[][] codes = new int[forestSize][];
+        Master master = null;
+        if (rank == 0 && DYNAMIC) {
+            master = new Master(world, codes, forestSize,
+                    Math.max(1, forestSize / (8 * size)));
+            master.start();
+        } else if (rank == 0 && BROADCAST) {
+            master = new Master(world, codes, forestSize - treeRange.length());
+            master.start();
+        }
 
-        // Make an array to hold and gather all the trees.
-        DecisionTree<String>[] trees = (DecisionTree<String>[])new DecisionTree[forestSize];
-        // Populate this processor's section of it.
-        int treeIndex = treeRange.lb();
-        for (DecisionTree<String> tree : forest.trees) {
-            trees[treeIndex] = tree;
-            treeIndex++;
+        // Grow this processor's trees, tallying their out-of-bag votes.
+        OutOfBag<String> oob = new OutOfBag<String>(trainingData);
+        List<DecisionTree<String>> localTrees = new ArrayList<DecisionTree<String>>();
+        int[] batch = DYNAMIC ? nextBatch(world, master)
+            : new int[] { treeRange.lb(), treeRange.ub() };
+        while (batch != null) {
+            for (int i = batch[0]; i <= batch[1]; i++) {
+                DecisionTree<String> tree = growTree(trainingData, n, m, seed, i, limits,
+                        false, oob);
+                if (!BROADCAST) {
+                    localTrees.add(tree);
+                } else if (rank == 0) {
+                    codes[i] = DecisionTree.encode(tree);
+                } else {
+                    int[] code = DecisionTree.encode(tree);
+                    world.send(0, TREE_TAG, IntegerBuf.buffer(new int[] { i, code.length }));
+                    world.send(0, TREE_TAG, IntegerBuf.buffer(code));
+                    ForestMetrics.gathered(4L * (2 + code.length));
+                }
+            }
+            batch = DYNAMIC ? nextBatch(world, master) : null;
         }
 
-        // Buffers for the tree data.
-        ObjectBuf[] treeBufs = ObjectBuf.sliceBuffers(trees, treeRanges);
-        ObjectBuf treeBuf = treeBufs[rank];
+        // Wait for the other processors' trees and out-of-bag votes.
+        long grown = System.currentTimeMillis();
+        if (master != null) {
+            master.finish();
+        }
 
-        // Gather the trees from each processor.
-        world.gather(0, treeBuf, treeBufs);
+        // Add up every processor's out-of-bag votes.
+        world.reduce(0, IntegerBuf.buffer(oob.votes), IntegerOp.SUM);
+        ForestMetrics.reduced(4L * oob.votes.length);
 
         // Stop timing training, start timing testing.
         long t2 = System.currentTimeMillis();
 
-        // Send the completed RandomForest to each processor.
-        world.broadcast(0, ObjectBuf.buffer(trees));
+        // Test the forest.
+        int correct;
+        if (BROADCAST) {
+            correct = testBroadcast(world, trainingData.schema, codes, testData);
+        } else {
+            CompiledForest<String> forest =
+                CompiledForest.compile(trainingData.schema, localTrees);
+            int[] votes = reduceVotes(world, forest, testData);
+            correct = rank == 0 ? correct(testData, votes) : 0;
+        }
+
+        // Stop timing.
+        long t3 = System.currentTimeMillis();
+
+        // Print results.
+        if (rank == 0) {
+            System.out.println(trainingData.size() + " samples used to train the forest.");
+            System.out.println(testData.size() + " samples used to test the forest.");
+            printTests(correct, testData.size());
+            printOutOfBag(oob);
+            System.out.println("Data loading time: " + (t1 - t0) + " ms");
+            System.out.println("Forest construction time: " + (t2 - t1) + " ms");
+            System.out.println("Tree gathering time: " + (t2 - grown) + " ms");
+            System.out.println("Forest testing time: " + (t3 - t2) + " ms");
+            System.out.println("Seed: " + seed);
+        }
+
+    }
+
+    /**
+     * Whether to score by sending the whole forest to every processor, as
+     * set by the forest.broadcast property, rather than reducing votes.
+     */
+    private static final boolean BROADCAST = Boolean.getBoolean("forest.broadcast");
+
+    /**
+     * Whether each processor should read only its shard of the data file,
+     * and grow every tree together with the others, as set by the
+     * forest.sharded property.
+     */
+    private static final boolean SHARDED = Boolean.getBoolean("forest.sharded");
+
+    /**
+     * Whether rank 0 should hand out trees to the processors in batches as
+     * they ask for them, as set by the forest.dynamic property, rather than
+     * giving each one an equal range up front.
+     */
+    private static final boolean DYNAMIC = Boolean.getBoolean("forest.dynamic");
+
+    /** The message tag for trees and requests for work sent to rank 0. */
+    private static final int TREE_TAG = 1;
 
-        // Convert the tree array into a list and make the RandomForest.
-        forest = new RandomForestCluster<String>(Arrays.asList(trees));
+    /** The message tag for batches of work sent from rank 0. */
+    private static final int WORK_TAG = 2;
+
+    /**
+     * Count the votes of this processor's trees on every row of a dataset,
+     * and add up the votes of every processor's trees on rank 0.  No
+     * processor ever needs more than its own trees.
+     *
+     * @param world     The communicator of the processors.
+     * @param forest    This processor's trees.
+     * @param data      The rows to vote on; the same on every processor.
+     * @return          On rank 0, the votes of the whole forest: the votes
+     *                  for decision code d on row r are votes[r * k + d],
+     *                  where k is the number of decisions.  On the other
+     *                  ranks, just this processor's votes.
+     */
+    public static <D> int[] reduceVotes(
+            Comm world, CompiledForest<D> forest, Dataset<D> data)
+        throws IOException
+    {
+        int[] votes = new int[data.size() * forest.schema.numDecisions()];
+        forest.predictBatch(data, 0, data.size(), votes, new int[data.size()]);
+        world.reduce(0, IntegerBuf.buffer(votes), IntegerOp.SUM);
+        ForestMetrics.reduced(4L * votes.length);
+        return votes;
+    }
+
+    /**
+     * @param data      The test data.
+     * @param votes     The votes on each row, as from reduceVotes().
+     * @return          The number of rows whose most voted for decision is
+     *                  correct, the lowest decision code winning ties.
+     */
+    private static <D> int correct(Dataset<D> data, int[] votes) {
+        int k = data.schema.numDecisions();
+        int correct = 0;
+        for (int r = 0; r < data.size(); r++) {
+            int base = r * k;
+            int mode = 0;
+            for (int d = 1; d < k; d++) {
+                if (votes[base + d] > votes[base + mode]) {
+                    mode = d;
+                }
+            }
+            if (mode == data.label(r)) {
+                correct++;
+            }
+        }
+        return correct;
+    }
+
+    /**
+     * Send the whole forest from rank 0 to every processor, then have each
+     * one test its own slice of the test data.
+     *
+     * @param world     The communicator of the processors.
+     * @param schema    The schema the trees were grown with.
+     * @param codes     On rank 0, the encoding of every tree.
+     * @param testData  The test data.
+     * @return          On rank 0, the number of correct decisions.
+     */
+    private static int testBroadcast(Comm world, Schema<String> schema,
+            int[][] codes, Dataset<String> testData) throws Exception
+    {
+        int rank = world.rank();
+
+        // Sub-list of test data that this processor will test with.
+        Range[] testRanges = new Range(0, testData.size() - 1).subranges(world.size());
+        Range testRange = testRanges[rank];
+        Dataset<String> testDataSlice = testData.range(
+                testRange.lb(), testRange.ub() + 1);
+
+        // Send the whole forest to each processor: first its length, then
+        // the offset of each tree followed by the trees' encodings.
+        int[] forestCode = null;
+        if (rank == 0) {
+            forestCode = pack(codes);
+        }
+        IntegerItemBuf lengthBuf = IntegerBuf.buffer(
+                forestCode == null ? 0 : forestCode.length);
+        world.broadcast(0, lengthBuf);
+        if (rank != 0) {
+            forestCode = new int[lengthBuf.item];
+        }
+        world.broadcast(0, IntegerBuf.buffer(forestCode));
+        if (rank == 0) {
+            ForestMetrics.broadcast(4L * forestCode.length);
+        }
+
+        // Decode the trees and make the RandomForest.
+        @SuppressWarnings("unchecked")
+        Decision<String>[] leaves = (Decision<String>[])new Decision<?>[schema.numDecisions()];
+        List<DecisionTree<String>> trees = new ArrayList<DecisionTree<String>>(codes.length);
+        for (int t = 0; t < codes.length; t++) {
+            trees.add(DecisionTree.decode(schema, forestCode, forestCode[t], leaves));
+        }
+        RandomForestCluster<String> forest = new RandomForestCluster<String>(schema, trees);
 
         // Test the forest.
-        int correct = forest.test(testDataSlice);
-        IntegerItemBuf correctBuf = IntegerBuf.buffer(correct);
+        IntegerItemBuf correctBuf = IntegerBuf.buffer(forest.test(testDataSlice));
         world.reduce(0, correctBuf, IntegerOp.SUM);
-        correct = correctBuf.item;
+        return correctBuf.item;
+    }
+
+    /**
+     * Train and test a forest on data sharded across the processors, and
+     * print the results on rank 0.  Each processor reads a shard of the
+     * file, the shards' dictionaries are merged on rank 0 and sent back out,
+     * and each shard is split into training and test rows of its own.
+     */
+    @SuppressWarnings("unchecked")
+    private static void runSharded(Comm world, int forestSize, int n, int m,
+            String dataFile, double split, long seed, TreeLimits limits) throws Exception
+    {
+        int rank = world.rank();
+        int size = world.size();
+
+        // Read this processor's shard of the file.
+        long t0 = System.currentTimeMillis();
+        Dataset<String> local = RandomForestInput.readDataset(
+                dataFile, rank, size, ForestEngine.shared());
+
+        // Merge every shard's dictionaries on rank 0 and share the result.
+        Schema<String>[] schemas = (Schema<String>[])new Schema<?>[size];
+        schemas[rank] = local.schema;
+        ObjectBuf<Schema<String>>[] schemaBufs =
+            ObjectBuf.sliceBuffers(schemas, new Range(0, size - 1).subranges(size));
+        world.gather(0, schemaBufs[rank], schemaBufs);
+        ObjectItemBuf<Schema<String>> schemaBuf = ObjectBuf.buffer(
+                rank == 0 ? Schema.merge(Arrays.asList(schemas)) : null);
+        world.broadcast(0, schemaBuf);
+        Dataset<String> data = local.recode(schemaBuf.item)
+            .shuffle(ListUtils.stream(new SplittableRandom(seed).nextLong(), rank));
+
+        // Split into training and testing data.
+        int numTraining = (int)(data.size() * split);
+        Dataset<String> trainingData = data.range(0, numTraining);
+        Dataset<String> testData = data.range(numTraining, data.size());
+
+        // Start timing.
+        long t1 = System.currentTimeMillis();
+
+        // Grow every tree together.
+        OutOfBag<String> oob = new OutOfBag<String>(trainingData);
+        RandomForestCluster<String> forest = growShardedForest(
+                world, trainingData, forestSize, n, m, seed, limits, oob);
+
+        // Stop timing training, start timing testing.
+        long t2 = System.currentTimeMillis();
+
+        // Every processor has the whole forest, so test the local rows.
+        int correct = forest.test(testData);
 
         // Stop timing.
         long t3 = System.currentTimeMillis();
 
+        // Add up the counts: training rows, test rows, correct tests, and
+        // correct and voted out-of-bag rows.
+        int[] counts = { trainingData.size(), testData.size(), correct,
+            oob.correct(), oob.numVoted() };
+        world.reduce(0, IntegerBuf.buffer(counts), IntegerOp.SUM);
+
         // Print results.
         if (rank == 0) {
-            System.out.println(trainingData.size() + " samples used to train the forest.");
-            System.out.println(testData.size() + " samples used to test the forest.");
-            double percent = 100.0 * correct / testData.size();
-            System.out.printf("%.2f%% (%d/%d) tests passed.\n",
-                    percent, correct, testData.size());
+            System.out.println(counts[0] + " samples used to train the forest.");
+            System.out.println(counts[1] + " samples used to test the forest.");
+            printTests(counts[2], counts[1]);
+            printOutOfBag(counts[3], counts[4]);
+            System.out.println("Data loading time: " + (t1 - t0) + " ms");
             System.out.println("Forest construction time: " + (t2 - t1) + " ms");
             System.out.println("Forest testing time: " + (t3 - t2) + " ms");
+            System.out.println("Seed: " + seed);
+        }
+    }
+
+    /**
+     * Lay out encoded trees in one array: the offset of each tree's encoding,
+     * then the encodings.
+     */
+    private static int[] pack(int[][] codes) {
+        int length = codes.length;
+        for (int[] code : codes) {
+            length += code.length;
+        }
+        int[] result = new int[length];
+        int pos = codes.length;
+        for (int t = 0; t < codes.length; t++) {
+            result[t] = pos;
+            System.arraycopy(codes[t], 0, result, pos, codes[t].length);
+            pos += codes[t].length;
+        }
+        return result;
+    }
+
+    /**
+     * Get the next batch of trees for this processor to grow from rank 0.
+     *
+     * @param world     The communicator of the processors.
+     * @param master    On rank 0, the Master handing out the batches.
+     * @return          The first and last index of the batch; null if every
+     *                  tree has been handed out.
+     */
+    private static int[] nextBatch(Comm world, Master master) throws IOException {
+        if (master != null) {
+            return master.take();
+        }
+        int[] batch = new int[2];
+        world.send(0, TREE_TAG, IntegerBuf.buffer(new int[] { -1, 0 }));
+        world.receive(0, WORK_TAG, IntegerBuf.buffer(batch));
+        return batch[0] > batch[1] ? null : batch;
+    }
+
+    /**
+     * Runs on rank 0 while it grows its own trees.  It receives the trees
+     * the other processors send, each as two messages: its index and length,
+     * then its encoding.  When scheduling dynamically it also hands out
+     * batches of tree indices on demand: a processor asks for work by
+     * sending an index of -1, and is sent the first and last index of its
+     * next batch, or an empty batch once every tree has been handed out.
+     * Each tree is grown from its own stream, so the forest is the same
+     * whichever processor ends up growing each tree.
+     */
+    private static class Master extends Thread {
+
+        final Comm world;
+        final int[][] codes;
+        final boolean dynamic;
+        final int count;
+        final int forestSize;
+        final int batchSize;
+        final AtomicInteger next = new AtomicInteger();
+        IOException error;
+
+        /**
+         * Make a Master that only collects trees.
+         *
+         * @param world     The communicator the trees are sent over.
+         * @param codes     Gets the encoding of each tree, by index.
+         * @param count     The number of trees to receive.
+         */
+        Master(Comm world, int[][] codes, int count) {
+            this.world = world;
+            this.codes = codes;
+            this.dynamic = false;
+            this.count = count;
+            this.forestSize = 0;
+            this.batchSize = 0;
+        }
+
+        /**
+         * Make a Master that hands out batches of trees, and collects any
+         * trees it is sent until every processor has run out of work.
+         *
+         * @param world         The communicator of the processors.
+         * @param codes         Gets the encoding of each tree, by index.
+         * @param forestSize    The number of trees in the forest.
+         * @param batchSize     The number of trees handed out at a time.
+         */
+        Master(Comm world, int[][] codes, int forestSize, int batchSize) {
+            this.world = world;
+            this.codes = codes;
+            this.dynamic = true;
+            this.count = 0;
+            this.forestSize = forestSize;
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * @return The first and last index of the next batch of trees; null
+         *         if every tree has been handed out.
+         */
+        int[] take() {
+            int lb = next.getAndAdd(batchSize);
+            if (lb >= forestSize) {
+                return null;
+            }
+            return new int[] { lb, Math.min(lb + batchSize, forestSize) - 1 };
+        }
+
+        public void run() {
+            try {
+                int[] header = new int[2];
+                int received = 0;
+                int stopped = 0;
+                while (dynamic ? stopped < world.size() - 1 : received < count) {
+                    CommStatus status = world.receive(
+                            null, TREE_TAG, IntegerBuf.buffer(header));
+                    if (header[0] >= 0) {
+                        // A finished tree.
+                        int[] code = new int[header[1]];
+                        world.receive(status.fromRank, TREE_TAG, IntegerBuf.buffer(code));
+                        codes[header[0]] = code;
+                        received++;
+                    } else {
+                        // A request for more work.
+                        int[] batch = take();
+                        if (batch == null) {
+                            batch = new int[] { 0, -1 };
+                            stopped++;
+                        }
+                        world.send(status.fromRank, WORK_TAG, IntegerBuf.buffer(batch));
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * Wait for every tree to arrive, and every processor to be told
+         * there is no more work.
+         *
+         * @throws IOException If communicating failed.
+         */
+        void finish() throws IOException, InterruptedException {
+            join();
+            if (error != null) {
+                throw error;
+            }
         }
 
     }
@@ -1,10 +1,19 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Utility class to read in data.
@@ -67,4 +76,652 @@ public class RandomForestInput {
 
     }
 
+    /** Files are read in chunks of at most about this many bytes. */
+    static final long CHUNK_SIZE = 1 << 26;
+
+    /** Files are only split into chunks at least this big. */
+    static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Utility function to read a data file straight into a Dataset, using the
+     * shared ForestEngine's threads.
+     *
+     * @param dataFile  The file to read data from.
+     * @return A Dataset<String> holding every line of the file.
+     */
+    public static Dataset<String> readDataset(String dataFile) throws Exception {
+        return readDataset(dataFile, ForestEngine.shared());
+    }
+
+    /**
+     * Utility function to read a data file straight into a Dataset.  The
+     * first field of each line is the decision, and field i after it is the
+     * value of attribute "i".
+     *
+     * The file is memory-mapped and split into chunks on line boundaries.
+     * Each chunk is parsed by its own task, straight from the mapped bytes,
+     * into columns of codes from the chunk's own dictionaries.  The
+     * dictionaries are then merged in file order, so the codes are the same
+     * as if the file had been read from start to end, and each chunk's codes
+     * are translated into the final columns in parallel.
+     *
+     * With the forest.numeric property set to true, an attribute whose every
+     * value is a number is numeric: rather than having a code per value, it
+     * is quantized into at most Dataset.MAX_VALUES bins holding about the
+     * same number of rows each, so it may have any number of distinct values.
+     * Otherwise every attribute is categorical, numbers or not.
+     *
+     * @param dataFile  The file to read data from.
+     * @param engine    The threads to parse the file with.
+     * @return A Dataset<String> holding every line of the file.
+     */
+    public static Dataset<String> readDataset(String dataFile, ForestEngine engine)
+        throws Exception
+    {
+        return readDataset(dataFile, 0, 1, engine);
+    }
+
+    /**
+     * Read one shard of a data file into a Dataset, as readDataset() does
+     * for the whole file.  The file is split into numShards byte ranges on
+     * line boundaries, and only the lines in the given one are read, so the
+     * dictionaries of the schema only hold the values seen in the shard;
+     * see Schema.merge() and Dataset.recode() to make the shards agree.
+     *
+     * @param dataFile  The file to read data from.
+     * @param shard     The index of the shard to read.
+     * @param numShards The number of shards to split the file into.
+     * @param engine    The threads to parse the shard with.
+     * @return A Dataset<String> holding every line of the shard.
+     */
+    public static Dataset<String> readDataset(String dataFile, int shard,
+            int numShards, ForestEngine engine) throws Exception
+    {
+        return readDataset(dataFile, shard, numShards, engine,
+                Boolean.getBoolean("forest.numeric"));
+    }
+
+    /**
+     * Read one shard of a data file into a Dataset, choosing whether to
+     * look for numeric attributes rather than going by the forest.numeric
+     * property.
+     *
+     * @param dataFile  The file to read data from.
+     * @param shard     The index of the shard to read.
+     * @param numShards The number of shards to split the file into.
+     * @param engine    The threads to parse the shard with.
+     * @param numeric   Whether attributes whose every value is a number are
+     *                  numeric, rather than categorical.
+     * @return A Dataset<String> holding every line of the shard.
+     */
+    public static Dataset<String> readDataset(String dataFile, int shard,
+            int numShards, ForestEngine engine, final boolean numeric) throws Exception
+    {
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        final FileChannel channel = file.getChannel();
+        try {
+
+            // Find the lines of the shard.
+            long fileSize = channel.size();
+            long begin = lineStart(channel, fileSize * shard / numShards);
+            long end = lineStart(channel, fileSize * (shard + 1) / numShards);
+            long shardSize = end - begin;
+
+            // Split the shard into chunks that start at the start of a line.
+            long numChunks = Math.max(4L * engine.threads(),
+                    (shardSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            numChunks = Math.max(1, Math.min(numChunks, shardSize / MIN_CHUNK_SIZE));
+            final long[] bounds = new long[(int)numChunks + 1];
+            bounds[0] = begin;
+            for (int c = 1; c < numChunks; c++) {
+                bounds[c] = Math.max(bounds[c - 1],
+                        lineStart(channel, begin + shardSize * c / numChunks));
+            }
+            bounds[(int)numChunks] = end;
+
+            // Parse the chunks in parallel.
+            final Chunk[] chunks = new Chunk[(int)numChunks];
+            engine.pool().invoke(new RecursiveAction() {
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                    for (int c = 0; c < chunks.length; c++) {
+                        final int index = c;
+                        tasks.add(new RecursiveAction() {
+                            protected void compute() {
+                                try {
+                                    chunks[index] = new Chunk(channel.map(
+                                                FileChannel.MapMode.READ_ONLY,
+                                                bounds[index],
+                                                bounds[index + 1] - bounds[index]),
+                                            numeric);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }
+                        });
+                    }
+                    invokeAll(tasks);
+                }
+            });
+
+            // Check that every line had the same number of fields.
+            int numAttrs = -1;
+            for (Chunk chunk : chunks) {
+                if (chunk.size == 0) {
+                    continue;
+                }
+                if (numAttrs >= 0 && chunk.numAttrs != numAttrs) {
+                    throw new IllegalArgumentException("Lines of " + dataFile
+                            + " have different numbers of fields.");
+                }
+                numAttrs = chunk.numAttrs;
+            }
+            numAttrs = Math.max(numAttrs, 0);
+
+            // Merge the chunks' dictionaries in order, mapping each chunk's
+            // codes to the merged ones, and find where each chunk's rows go.
+            List<Map<String,Integer>> valueCodes = new ArrayList<Map<String,Integer>>();
+            List<List<String>> values = new ArrayList<List<String>>();
+            for (int i = 0; i < numAttrs; i++) {
+                valueCodes.add(new HashMap<String,Integer>());
+                values.add(new ArrayList<String>());
+            }
+            Map<String,Integer> decisionCodes = new HashMap<String,Integer>();
+            List<String> decisions = new ArrayList<String>();
+            final int[][][] valueMaps = new int[chunks.length][numAttrs][];
+            final int[][] decisionMaps = new int[chunks.length][];
+            final int[] offsets = new int[chunks.length + 1];
+            boolean[] numericAttrs = new boolean[numAttrs];
+            Arrays.fill(numericAttrs, numeric);
+            for (int c = 0; c < chunks.length; c++) {
+                Chunk chunk = chunks[c];
+                decisionMaps[c] = chunk.decisions.merge(decisionCodes, decisions);
+                for (int i = 0; i < chunk.numAttrs; i++) {
+                    if (chunk.numbers[i] == null) {
+                        numericAttrs[i] = false;
+                    }
+                }
+                offsets[c + 1] = offsets[c] + chunk.size;
+            }
+            Dataset.checkDecisions(decisions.size());
+
+            // Lay out the schema, binning the numeric attributes.
+            String[] attrNames = new String[numAttrs];
+            String[][] attrValues = new String[numAttrs][];
+            double[][] cuts = new double[numAttrs][];
+            for (int i = 0; i < numAttrs; i++) {
+                // We'll use the string of i as our attribute name.
+                attrNames[i] = String.valueOf(i + 1);
+                if (numericAttrs[i]) {
+                    cuts[i] = cuts(chunks, i);
+                    attrValues[i] = Schema.binValues(cuts[i]);
+                    continue;
+                }
+                for (int c = 0; c < chunks.length; c++) {
+                    if (chunks[c].size > 0) {
+                        valueMaps[c][i] = chunks[c].values[i].merge(valueCodes.get(i),
+                                values.get(i));
+                    }
+                }
+                attrValues[i] = values.get(i).toArray(new String[0]);
+                Dataset.checkValues(attrNames[i], attrValues[i].length);
+            }
+            Schema<String> schema = new Schema<String>(attrNames, attrValues, decisions, cuts);
+
+            // Map each chunk's numbers to their bins.
+            for (int i = 0; i < numAttrs; i++) {
+                if (!numericAttrs[i]) {
+                    continue;
+                }
+                for (int c = 0; c < chunks.length; c++) {
+                    if (chunks[c].size == 0) {
+                        continue;
+                    }
+                    double[] numbers = chunks[c].numbers[i];
+                    valueMaps[c][i] = new int[numbers.length];
+                    for (int v = 0; v < numbers.length; v++) {
+                        valueMaps[c][i][v] = schema.bin(i, numbers[v]);
+                    }
+                }
+            }
+
+            // Translate each chunk's codes into the final columns in parallel.
+            final byte[][] columns = new byte[numAttrs][offsets[chunks.length]];
+            final short[] labels = new short[offsets[chunks.length]];
+            engine.pool().invoke(new RecursiveAction() {
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                    for (int c = 0; c < chunks.length; c++) {
+                        final int index = c;
+                        tasks.add(new RecursiveAction() {
+                            protected void compute() {
+                                chunks[index].copyTo(columns, labels, offsets[index],
+                                    valueMaps[index], decisionMaps[index]);
+                            }
+                        });
+                    }
+                    invokeAll(tasks);
+                }
+            });
+
+            return new Dataset<String>(schema, columns, labels);
+
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Choose the bins of a numeric attribute from its values in every chunk,
+     * so that each bin holds about the same number of rows: one bin per
+     * distinct number if there are few enough, and otherwise a cut at the
+     * first number reaching each Dataset.MAX_VALUES-th of the rows.
+     *
+     * @param chunks    The parsed chunks.
+     * @param attr      The numeric attribute.
+     * @return          The bin cuts, in increasing order.
+     */
+    private static double[] cuts(Chunk[] chunks, int attr) {
+        // Count the rows with each distinct number.
+        TreeMap<Double,Integer> histogram = new TreeMap<Double,Integer>();
+        long total = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.size == 0) {
+                continue;
+            }
+            double[] numbers = chunk.numbers[attr];
+            for (int v = 0; v < numbers.length; v++) {
+                int n = chunk.values[attr].count(v);
+                Integer old = histogram.get(numbers[v]);
+                histogram.put(numbers[v], old == null ? n : old + n);
+                total += n;
+            }
+        }
+        double[] cuts = new double[Math.min(histogram.size(), Dataset.MAX_VALUES)];
+        int b = 0;
+        if (histogram.size() <= Dataset.MAX_VALUES) {
+            for (double x : histogram.keySet()) {
+                cuts[b++] = x;
+            }
+            return cuts;
+        }
+        // Only the last number reaches every row, so the last cut is the
+        // largest number and there are never more than MAX_VALUES cuts.
+        long seen = 0;
+        for (Map.Entry<Double,Integer> entry : histogram.entrySet()) {
+            seen += entry.getValue();
+            if (seen * Dataset.MAX_VALUES >= (b + 1) * total) {
+                cuts[b++] = entry.getKey();
+            }
+        }
+        return Arrays.copyOf(cuts, b);
+    }
+
+    /**
+     * Find the start of the first line that starts at or after a position.
+     *
+     * @param channel   The file.
+     * @param position  A position in the file.
+     * @return          0 for position 0, otherwise the position just after the
+     *                  first newline at or after position - 1, or the end of
+     *                  the file.
+     */
+    private static long lineStart(FileChannel channel, long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long p = position - 1;
+        while (true) {
+            buf.clear();
+            int n = channel.read(buf, p);
+            if (n <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+    }
+
+    /**
+     * Look up the code of a value in a dictionary, adding it if it's new.
+     *
+     * @param value     The value to encode.
+     * @param codes     The value->code map of the dictionary.
+     * @param values    The values of the dictionary, in code order.
+     * @return The code of value.
+     */
+    static int encode(String value, Map<String,Integer> codes, List<String> values) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+}
+
+/**
+ * The lines of one chunk of a data file, parsed straight from its bytes.
+ * Values are encoded with dictionaries local to the chunk.  A column starts
+ * out as bytes, and is widened to ints if its dictionary outgrows them, as
+ * a numeric attribute's may.
+ */
+class Chunk {
+
+    /** The number of rows parsed. */
+    int size;
+
+    /** The number of attributes on each line; -1 if there were no lines. */
+    int numAttrs = -1;
+
+    /** The local value codes of each attribute, if they fit in a byte. */
+    byte[][] columns;
+
+    /** The local value codes of each attribute that has been widened. */
+    int[][] wide;
+
+    /** The local decision code of each row. */
+    short[] labels = new short[1024];
+
+    /** The dictionary of each attribute. */
+    ByteDictionary[] values;
+
+    /** The dictionary of decisions. */
+    ByteDictionary decisions = new ByteDictionary();
+
+    /**
+     * The number each local value code of each attribute stands for; null
+     * for an attribute with a value that isn't a number, or for every
+     * attribute if numbers weren't asked for.
+     */
+    double[][] numbers;
+
+    /**
+     * Parse every line in a buffer.
+     *
+     * @param buf       The bytes of whole lines.
+     * @param numeric   Whether to parse the values as numbers too.
+     * @throws IllegalArgumentException If lines have different numbers of
+     *                                  fields, or there are too many
+     *                                  decisions.
+     */
+    Chunk(ByteBuffer buf, boolean numeric) throws IllegalArgumentException {
+        int end = buf.limit();
+        int i = 0;
+        while (i < end) {
+            // Skip blank lines.
+            byte b = buf.get(i);
+            if (b == '\n' || b == '\r') {
+                i++;
+                continue;
+            }
+            // The first line tells us how many columns there are.
+            if (columns == null) {
+                numAttrs = 0;
+                for (int j = i; j < end && (b = buf.get(j)) != '\n'; j++) {
+                    if (b == ',') {
+                        numAttrs++;
+                    }
+                }
+                columns = new byte[numAttrs][labels.length];
+                wide = new int[numAttrs][];
+                values = new ByteDictionary[numAttrs];
+                for (int a = 0; a < numAttrs; a++) {
+                    values[a] = new ByteDictionary();
+                }
+            }
+            // Make room for another row.
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                for (int a = 0; a < numAttrs; a++) {
+                    if (wide[a] != null) {
+                        wide[a] = Arrays.copyOf(wide[a], size * 2);
+                    } else {
+                        columns[a] = Arrays.copyOf(columns[a], size * 2);
+                    }
+                }
+            }
+            // Encode each field.
+            int field = 0;
+            while (true) {
+                int j = i;
+                while (j < end && (b = buf.get(j)) != ',' && b != '\n') {
+                    j++;
+                }
+                boolean lastField = j == end || b == '\n';
+                int fieldEnd = j;
+                if (lastField && fieldEnd > i && buf.get(fieldEnd - 1) == '\r') {
+                    fieldEnd--;
+                }
+                if (field > numAttrs) {
+                    throw new IllegalArgumentException("Line has more than "
+                            + (numAttrs + 1) + " fields.");
+                }
+                if (field == 0) {
+                    labels[size] = (short)decisions.code(buf, i, fieldEnd);
+                } else {
+                    int attr = field - 1;
+                    int code = values[attr].code(buf, i, fieldEnd);
+                    if (wide[attr] == null && code >= Dataset.MAX_VALUES) {
+                        widen(attr);
+                    }
+                    if (wide[attr] != null) {
+                        wide[attr][size] = code;
+                    } else {
+                        columns[attr][size] = (byte)code;
+                    }
+                }
+                field++;
+                i = j + 1;
+                if (lastField) {
+                    break;
+                }
+            }
+            if (field != numAttrs + 1) {
+                throw new IllegalArgumentException("Line has " + field
+                        + " fields where " + (numAttrs + 1) + " were expected.");
+            }
+            size++;
+        }
+        Dataset.checkDecisions(decisions.size());
+        // Parse the numbers here, while the chunks are still in parallel.
+        numbers = new double[Math.max(numAttrs, 0)][];
+        for (int a = 0; numeric && a < numAttrs; a++) {
+            numbers[a] = values[a].numbers();
+        }
+    }
+
+    /**
+     * Switch a column from byte codes to int codes.
+     */
+    private void widen(int attr) {
+        byte[] column = columns[attr];
+        int[] codes = new int[column.length];
+        for (int r = 0; r < size; r++) {
+            codes[r] = column[r] & 0xFF;
+        }
+        wide[attr] = codes;
+        columns[attr] = null;
+    }
+
+    /**
+     * Write this chunk's rows into the final columns, translating the codes.
+     *
+     * @param columns       The final value codes of each attribute.
+     * @param labels        The final decision code of each row.
+     * @param offset        Where this chunk's first row goes.
+     * @param valueMaps     The final code of each local value code.
+     * @param decisionMap   The final code of each local decision code.
+     */
+    void copyTo(byte[][] columns, short[] labels, int offset,
+            int[][] valueMaps, int[] decisionMap)
+    {
+        for (int a = 0; a < numAttrs; a++) {
+            byte[] to = columns[a];
+            int[] map = valueMaps[a];
+            if (wide[a] != null) {
+                int[] from = wide[a];
+                for (int r = 0; r < size; r++) {
+                    to[offset + r] = (byte)map[from[r]];
+                }
+            } else {
+                byte[] from = this.columns[a];
+                for (int r = 0; r < size; r++) {
+                    to[offset + r] = (byte)map[from[r] & 0xFF];
+                }
+            }
+        }
+        for (int r = 0; r < size; r++) {
+            labels[offset + r] = (short)decisionMap[this.labels[r] & 0xFFFF];
+        }
+    }
+
+}
+
+/**
+ * An open-addressing hash table from byte strings to codes 0, 1, 2, ... in
+ * the order they were first seen, counting how many times each was looked
+ * up.  Lookups read straight from a buffer, so only new values are ever
+ * copied out.
+ */
+class ByteDictionary {
+
+    /** Each slot holds a code + 1, or 0 if it is empty. */
+    private int[] slots = new int[16];
+
+    /** The hash of each code's bytes. */
+    private int[] hashes = new int[8];
+
+    /** The bytes of each code. */
+    private byte[][] keys = new byte[8][];
+
+    /** The number of lookups of each code. */
+    private int[] counts = new int[8];
+
+    /** The number of codes. */
+    private int size;
+
+    /**
+     * @return The number of distinct values seen.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param code  A code.
+     * @return      The number of times its value was looked up.
+     */
+    int count(int code) {
+        return counts[code];
+    }
+
+    /**
+     * Look up the code of the bytes buf[from, to), adding them if they're new.
+     */
+    int code(ByteBuffer buf, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + buf.get(i);
+        }
+        int mask = slots.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0) {
+            int code = slots[slot] - 1;
+            if (hashes[code] == hash && matches(keys[code], buf, from, to)) {
+                counts[code]++;
+                return code;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // A new value.
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        byte[] key = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            key[i - from] = buf.get(i);
+        }
+        keys[size] = key;
+        hashes[size] = hash;
+        counts[size] = 1;
+        slots[slot] = ++size;
+        if (2 * size > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Add this dictionary's values to a String dictionary.
+     *
+     * @param codes     The value->code map of the String dictionary.
+     * @param values    The values of the String dictionary, in code order.
+     * @return          The code in the String dictionary of each of this
+     *                  dictionary's codes.
+     */
+    int[] merge(Map<String,Integer> codes, List<String> values) {
+        int[] map = new int[size];
+        for (int c = 0; c < size; c++) {
+            String value = new String(keys[c], StandardCharsets.UTF_8);
+            map[c] = RandomForestInput.encode(value, codes, values);
+        }
+        return map;
+    }
+
+    /**
+     * @return  The number each code's value stands for; null if a value is
+     *          not a number, or is NaN.
+     */
+    double[] numbers() {
+        double[] result = new double[size];
+        for (int c = 0; c < size; c++) {
+            try {
+                result[c] = Double.parseDouble(new String(keys[c], StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (Double.isNaN(result[c])) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buf, int from, int to) {
+        if (key.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buf.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Double the number of slots.
+     */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int c = 0; c < size; c++) {
+            int slot = (hashes[c] ^ (hashes[c] >>> 16)) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = c + 1;
+        }
+    }
+
 }
@@ -1,28 +1,24 @@
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-import edu.rit.pj.Comm;
-import edu.rit.pj.IntegerForLoop;
-import edu.rit.pj.IntegerSchedule;
-import edu.rit.pj.ParallelRegion;
-import edu.rit.pj.ParallelTeam;
-import edu.rit.pj.reduction.SharedObjectArray;
-import edu.rit.pj.reduction.SharedInteger;
+import java.util.SplittableRandom;
 
 /**
  * A RandomForest is simply a collection of DecisionTrees.
  * These trees are grown in a certain random way, and they vote on decisions.
  * This class grows and runs the trees in multiple threads.
+ *
+ * The threads belong to a ForestEngine, which is kept for the life of the
+ * forest so that every call to test() reuses them.  Trees are grown as tasks
+ * in the engine's pool, and each tree forks tasks for its own large nodes
+ * into the same pool, so every thread stays busy even when there are fewer
+ * trees than threads.
  */
+@SuppressWarnings("serial")
 public class RandomForestSmp<D> extends RandomForest<D> {
     
     /**
-     * Grows a random forest from a list of samples.
+     * Grows a random forest from a dataset.
      *
-     * @param attrs     The attributes and their possible values.
-     * @param samples   The sample data to train on.
+     * @param data      The sample data to train on.
      * @param size      The number of trees in the forest.
      * @param n         The number of sample records to choose with replacement
      *                  for each tree.
@@ -31,90 +27,136 @@ public class RandomForestSmp<D> extends RandomForest<D> {
      * @return          A new RandomForest.
      */
     public static <D> RandomForestSmp<D> growRandomForest(
-            final Map<String,List<String>> attrs,
-            final List<Sample<D>> samples,
-            final int size,
-            final int n,
-            final int m) throws Exception
+            Dataset<D> data,
+            int size,
+            int n,
+            int m) throws Exception
     {
-        // The trees for this random forest.
-        final List<DecisionTree<D>> trees = new ArrayList<DecisionTree<D>>(size);
-        for (int i = 0; i < size; i++) {
-            trees.add(null);
-        }
-
-        // Construct the trees in parallel.
-        new ParallelTeam().execute (new ParallelRegion() {
-            public void run() throws Exception {
-                execute(0, size - 1, new IntegerForLoop() {
-                    public void run(int first, int last) {
-                        for (int i = first; i <= last; i++) {
-                            // Get the subset of samples to train this tree on.
-                            List<Sample<D>> sampleChoices = ListUtils.choices(samples, n);
-                            // Train and save a DecisionTree.
-                            trees.set(i, DecisionTree.growDecisionTree(
-                                    attrs, sampleChoices, m));
-                        }
-                    }
-                });
-            }
-        });
-
-        // Construct and return the actual RandomForest object.
-        return new RandomForestSmp<D>(trees);
+        return growRandomForest(data, size, n, m, new SplittableRandom().nextLong());
     }
 
     /**
-     * @param trees     The trees in this forest.
+     * Grows a random forest from a dataset, reproducibly.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed; each tree gets its own stream from it,
+     *                  so the forest matches RandomForest's for the same seed.
+     * @return          A new RandomForest.
      */
-    protected RandomForestSmp(List<DecisionTree<D>> trees) {
-        super(trees);
+    public static <D> RandomForestSmp<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed) throws Exception
+    {
+        return ForestEngine.shared().growRandomForest(data, size, n, m, seed);
     }
 
-    /** 
-     * Run a list of samples against this forest.
+    /**
+     * Grows a random forest from a dataset, tallying out-of-bag votes.
      *
-     * @param samples   The test samples to evaluate the forest with.
-     * @return          The number of correct decisions by this forest.
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest.
      */
-    public int test(final List<Sample<D>> samples) throws Exception {
-
-        // Aggregate variable for the number of correct cases.
-        final SharedInteger correct = new SharedInteger(0);
+    public static <D> RandomForestSmp<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            OutOfBag<D> oob) throws Exception
+    {
+        return ForestEngine.shared().growRandomForest(data, size, n, m, seed, oob);
+    }
 
-        // Test the samples in parallel and count the number that were correct.
-        new ParallelTeam().execute(new ParallelRegion() {
-            public void run() throws Exception {
-                execute(0, samples.size() - 1, new IntegerForLoop() {
+    /**
+     * Grows a random forest from a dataset, with limits on the trees.
+     *
+     * @param data      The sample data to train on.
+     * @param size      The number of trees in the forest.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @param oob       Gets each tree's votes on the rows it was not trained
+     *                  on; null not to keep track.
+     * @return          A new RandomForest.
+     */
+    public static <D> RandomForestSmp<D> growRandomForest(
+            Dataset<D> data,
+            int size,
+            int n,
+            int m,
+            long seed,
+            TreeLimits limits,
+            OutOfBag<D> oob) throws Exception
+    {
+        return ForestEngine.shared().growRandomForest(data, size, n, m, seed, limits, oob);
+    }
 
-                    int tCorrect = 0;
+    /** The threads this forest runs on; null for the shared engine. */
+    private transient ForestEngine engine;
 
-                    public void run(int first, int last) {
-                        for (Sample<D> sample : samples.subList(first, last + 1)) {
-                            if (sample.decision.equals(decide(sample))) {
-                                tCorrect++;
-                            }
-                        }
-                    }
+    /**
+     * @param schema    The schema of the data the trees were grown from.
+     * @param trees     The trees in this forest.
+     */
+    protected RandomForestSmp(Schema<D> schema, List<DecisionTree<D>> trees) {
+        this(schema, trees, null);
+    }
 
-                    public void finish() {
-                        correct.addAndGet(tCorrect);
-                    }
+    /**
+     * @param schema    The schema of the data the trees were grown from.
+     * @param trees     The trees in this forest.
+     * @param engine    The threads to run on; null for the shared engine.
+     */
+    protected RandomForestSmp(Schema<D> schema, List<DecisionTree<D>> trees,
+            ForestEngine engine)
+    {
+        super(schema, trees);
+        this.engine = engine;
+    }
 
-                });
-            }
-        });
+    /**
+     * @return The engine this forest runs on.
+     */
+    public ForestEngine engine() {
+        return engine == null ? ForestEngine.shared() : engine;
+    }
 
-        // Return the number of correctly decided samples.
-        return correct.get();
+    /** 
+     * Run a dataset against this forest.
+     *
+     * @param data      The test data to evaluate the forest with.
+     * @return          The number of correct decisions by this forest.
+     */
+    public int test(Dataset<D> data) throws Exception {
+        // Flatten the trees so each thread can run them a block at a time.
+        return engine().test(compile(), data);
     }
 
     /**
      * Parse input data, and time the construction of a random forest.
      */
     public static void main(String[] args) throws Exception {
-        Comm.init(args);
-        if (args.length < 4 || args.length > 5) usage();
+        if (args.length < 4 || args.length > 6) usage();
+        ForestMetrics.register();
 
         // Parse arguments.
         int size = Integer.parseInt(args[0]);
@@ -127,23 +169,25 @@ public class RandomForestSmp<D> extends RandomForest<D> {
         } else {
             split = 0.75;
         }
+        long seed = parseSeed(args);
+        TreeLimits limits = TreeLimits.fromProperties();
 
-        // Read samples and attrs from the file.
-        Map<String,List<String>> attrs = new HashMap<String,List<String>>();
-        List<Sample<String>> data = RandomForestInput.readData(dataFile, attrs);
-        data = ListUtils.shuffle(data);
+        // Read the samples from the file.
+        Dataset<String> data = RandomForestInput.readDataset(dataFile)
+            .shuffle(new SplittableRandom(seed));
 
         // Split into training and testing data.
         int numTraining = (int)(data.size() * split);
-        List<Sample<String>> trainingData = data.subList(0, numTraining);
-        List<Sample<String>> testData = data.subList(numTraining, data.size());
+        Dataset<String> trainingData = data.range(0, numTraining);
+        Dataset<String> testData = data.range(numTraining, data.size());
 
         // Start timing.
         long t1 = System.currentTimeMillis();
 
-        // Grow the forest.
+        // Grow the forest, keeping track of its out-of-bag votes.
+        OutOfBag<String> oob = new OutOfBag<String>(trainingData);
         RandomForestSmp<String> forest = RandomForestSmp
-            .<String>growRandomForest(attrs, trainingData, size, n, m);
+            .<String>growRandomForest(trainingData, size, n, m, seed, limits, oob);
 
         // Stop timing training, start timing testing.
         long t2 = System.currentTimeMillis();
@@ -157,11 +201,11 @@ public class RandomForestSmp<D> extends RandomForest<D> {
         // Print results.
         System.out.println(trainingData.size() + " samples used to train the forest.");
         System.out.println(testData.size() + " samples used to test the forest.");
-        double percent = 100.0 * correct / testData.size();
-        System.out.printf("%.2f%% (%d/%d) tests passed.\n",
-                percent, correct, testData.size());
+        printTests(correct, testData.size());
+        printOutOfBag(oob);
         System.out.println("Forest construction time: " + (t2 - t1) + " ms");
         System.out.println("Forest testing time: " + (t3 - t2) + " ms");
+        System.out.println("Seed: " + seed);
 
     }
 
@@ -0,0 +1,329 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the sequential, SMP and cluster versions of the random forest over a
+ * grid of parameters, and writes the mean times of each configuration to a
+ * CSV file along with its speedup and efficiency over the sequential
+ * version.
+ *
+ * With strong scaling the forest stays the same size as workers are added.
+ * With weak scaling it grows with them, size trees per worker, and the
+ * speedup is how many times the sequential version's work per unit time the
+ * workers manage.  Speedup is measured on construction, which is training
+ * plus gathering the trees.
+ *
+ * The sequential and SMP versions run in this JVM, after warm-up runs, each
+ * with a ForestEngine of its own.  The cluster version runs
+ * RandomForestCluster in a child JVM for each run, with -Dpj.np set to the
+ * number of ranks and one thread per rank, so Parallel Java starts the ranks
+ * as local processes; its times are read from what it prints.  Any forest.*
+ * properties are passed on to it.
+ */
+public class ScalingBenchmark {
+
+    /** The options and their defaults. */
+    private static final Map<String,String> DEFAULTS = new LinkedHashMap<String,String>();
+    static {
+        DEFAULTS.put("modes", "seq,smp,cluster");
+        DEFAULTS.put("workers", "1,2,4");
+        DEFAULTS.put("scaling", "strong");
+        DEFAULTS.put("size", "100");
+        DEFAULTS.put("n", "1000");
+        DEFAULTS.put("m", "5");
+        DEFAULTS.put("split", "75");
+        DEFAULTS.put("seed", "1");
+        DEFAULTS.put("warmup", "1");
+        DEFAULTS.put("trials", "3");
+    }
+
+    /** Matches the times printed by the mains. */
+    private static final Pattern TIME = Pattern.compile("^(.*) time: (\\d+) ms$");
+
+    /** Matches the test results printed by the mains. */
+    private static final Pattern PASSED = Pattern.compile("^([\\d.]+)% .* tests passed\\.$");
+
+    /**
+     * The times of a run, or the means of several, in milliseconds.
+     */
+    static class Timings {
+
+        double load;
+        double train;
+        double gather;
+        double test;
+        double accuracy;
+
+        /**
+         * @return Training plus gathering the trees.
+         */
+        double construction() {
+            return train + gather;
+        }
+
+        void add(Timings t) {
+            load += t.load;
+            train += t.train;
+            gather += t.gather;
+            test += t.test;
+            accuracy += t.accuracy;
+        }
+
+        void divide(int count) {
+            load /= count;
+            train /= count;
+            gather /= count;
+            test /= count;
+            accuracy /= count;
+        }
+
+    }
+
+    /**
+     * Run the grid and write the CSV file.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) usage();
+        ForestMetrics.register();
+
+        // Parse arguments.
+        String dataFile = args[0];
+        String csvFile = args[1];
+        Map<String,String> options = new LinkedHashMap<String,String>(DEFAULTS);
+        for (int i = 2; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(args[i].substring(0, eq))) usage();
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        String[] modes = options.get("modes").split(",");
+        int[] workers = ints(options.get("workers"));
+        String scaling = options.get("scaling");
+        boolean weak = scaling.equals("weak");
+        if (!weak && !scaling.equals("strong")) usage();
+        int[] sizes = ints(options.get("size"));
+        int[] ns = ints(options.get("n"));
+        int[] ms = ints(options.get("m"));
+        double split = Double.parseDouble(options.get("split"));
+        long seed = Long.parseLong(options.get("seed"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int trials = Integer.parseInt(options.get("trials"));
+
+        PrintWriter out = new PrintWriter(new FileWriter(csvFile));
+        try {
+            out.println("mode,scaling,workers,size,n,m,trials,load_ms,train_ms,"
+                    + "gather_ms,test_ms,accuracy,speedup,efficiency");
+            for (int size : sizes) {
+                for (int n : ns) {
+                    for (int m : ms) {
+                        // The sequential baseline.
+                        Timings base = run("seq", 1, dataFile, size, n, m,
+                                split, seed, warmup, trials);
+                        write(out, "seq", scaling, 1, size, n, m, trials, base, 1.0);
+                        for (String mode : modes) {
+                            if (mode.equals("seq")) {
+                                continue;
+                            }
+                            for (int p : workers) {
+                                int trees = weak ? size * p : size;
+                                Timings t = run(mode, p, dataFile, trees, n, m,
+                                        split, seed, warmup, trials);
+                                double speedup = base.construction() / t.construction();
+                                if (weak) {
+                                    speedup *= p;
+                                }
+                                write(out, mode, scaling, p, trees, n, m, trials, t, speedup);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Run one configuration several times.
+     *
+     * @param mode      "seq", "smp" or "cluster".
+     * @param workers   The number of threads or ranks.
+     * @param warmup    The number of runs to throw away first.
+     * @param trials    The number of runs to average.
+     * @return          The mean times of the trials.
+     */
+    private static Timings run(String mode, int workers, String dataFile,
+            int size, int n, int m, double split, long seed, int warmup, int trials)
+        throws Exception
+    {
+        System.err.printf("%s, %d workers, size %d, n %d, m %d\n", mode, workers, size, n, m);
+        Timings mean = new Timings();
+        for (int i = -warmup; i < trials; i++) {
+            Timings t;
+            if (mode.equals("seq") || mode.equals("smp")) {
+                t = runLocal(mode.equals("smp"), workers, dataFile, size, n, m, split, seed);
+            } else if (mode.equals("cluster")) {
+                t = runCluster(workers, dataFile, size, n, m, split, seed);
+            } else {
+                throw new IllegalArgumentException("Unknown mode " + mode + ".");
+            }
+            if (i >= 0) {
+                mean.add(t);
+            }
+        }
+        mean.divide(trials);
+        return mean;
+    }
+
+    /**
+     * Run the sequential or SMP version in this JVM.
+     *
+     * @param smp       Whether to use the SMP version.
+     * @param threads   The number of threads for the SMP version; the
+     *                  sequential version reads its data with one thread.
+     */
+    private static Timings runLocal(boolean smp, int threads, String dataFile,
+            int size, int n, int m, double split, long seed) throws Exception
+    {
+        ForestEngine engine = new ForestEngine(smp ? threads : 1);
+        try {
+            long t0 = System.nanoTime();
+            Dataset<String> data = RandomForestInput.readDataset(dataFile, engine)
+                .shuffle(new SplittableRandom(seed));
+            int numTraining = (int)(data.size() * split / 100.0);
+            Dataset<String> trainingData = data.range(0, numTraining);
+            Dataset<String> testData = data.range(numTraining, data.size());
+            long t1 = System.nanoTime();
+            RandomForest<String> forest = smp
+                ? engine.growRandomForest(trainingData, size, n, m, seed)
+                : RandomForest.growRandomForest(trainingData, size, n, m, seed);
+            long t2 = System.nanoTime();
+            int correct = forest.test(testData);
+            long t3 = System.nanoTime();
+
+            Timings t = new Timings();
+            t.load = (t1 - t0) / 1e6;
+            t.train = (t2 - t1) / 1e6;
+            t.test = (t3 - t2) / 1e6;
+            t.accuracy = 100.0 * correct / testData.size();
+            return t;
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Run the cluster version in a child JVM, and read its times.
+     *
+     * @param ranks     The number of ranks.
+     */
+    private static Timings runCluster(int ranks, String dataFile,
+            int size, int n, int m, double split, long seed) throws Exception
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dpj.np=" + ranks);
+        command.add("-Dpj.nt=1");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("forest.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("RandomForestCluster");
+        command.add(String.valueOf(size));
+        command.add(String.valueOf(n));
+        command.add(String.valueOf(m));
+        command.add(dataFile);
+        command.add(String.valueOf(split));
+        command.add(String.valueOf(seed));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        // Pick the times out of the output.
+        Timings t = new Timings();
+        double construction = 0;
+        StringBuilder output = new StringBuilder();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                output.append(line).append('\n');
+                Matcher time = TIME.matcher(line);
+                Matcher passed = PASSED.matcher(line);
+                if (time.matches()) {
+                    double ms = Double.parseDouble(time.group(2));
+                    String what = time.group(1);
+                    if (what.equals("Data loading")) {
+                        t.load = ms;
+                    } else if (what.equals("Forest construction")) {
+                        construction = ms;
+                    } else if (what.equals("Tree gathering")) {
+                        t.gather = ms;
+                    } else if (what.equals("Forest testing")) {
+                        t.test = ms;
+                    }
+                } else if (passed.matches()) {
+                    t.accuracy = Double.parseDouble(passed.group(1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("RandomForestCluster failed:\n" + output);
+        }
+        t.train = construction - t.gather;
+        return t;
+    }
+
+    /**
+     * Write one row of the CSV file.
+     */
+    private static void write(PrintWriter out, String mode, String scaling,
+            int workers, int size, int n, int m, int trials, Timings t, double speedup)
+    {
+        out.println(String.format(Locale.ROOT,
+                    "%s,%s,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.2f,%.3f,%.3f",
+                    mode, scaling, workers, size, n, m, trials, t.load, t.train,
+                    t.gather, t.test, t.accuracy, speedup, speedup / workers));
+        out.flush();
+    }
+
+    /**
+     * @return The comma separated ints in s.
+     */
+    private static int[] ints(String s) {
+        String[] parts = s.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    private static void usage() {
+        StringBuilder options = new StringBuilder();
+        for (Map.Entry<String,String> option : DEFAULTS.entrySet()) {
+            options.append("\n    ").append(option.getKey()).append('=')
+                .append(option.getValue());
+        }
+        System.err.println("Usage: java ScalingBenchmark <data_file> <csv_file>"
+                + " [<option>=<value>[,<value>...] ...]\nOptions and defaults:"
+                + options);
+        System.exit(1);
+    }
+
+}
@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The dictionaries used to encode samples as small integer codes: the names
+ * of the attributes, the values each attribute can take, and the possible
+ * decisions.  Attribute i, value values[i][v] and decision decisions.get(d)
+ * are encoded as i, v and d respectively.
+ *
+ * A numeric attribute is quantized into ordered bins instead: cuts[i][b] is
+ * the largest number in bin b, so a number x goes in the first bin whose cut
+ * is at least x, or the last bin if there is none, and values[i][b] is the
+ * cut written as a string.  Trees split numeric attributes on thresholds.
+ */
+@SuppressWarnings("serial")
+public class Schema<D> implements java.io.Serializable {
+
+    /** The names of the attributes, in column order. */
+    public final String[] attrs;
+
+    /** The values of each attribute, indexed by their code. */
+    public final String[][] values;
+
+    /** The decisions, indexed by their code. */
+    public final List<D> decisions;
+
+    /** The bin cuts of each numeric attribute; null for other attributes. */
+    public final double[][] cuts;
+
+    /** Reverse lookups, built on first use. */
+    private transient Map<String,Integer> attrCodes;
+    private transient Map<String,Integer>[] valueCodes;
+    private transient volatile Map<D,Integer> decisionCodes;
+
+    /**
+     * @param attrs     The attribute names.
+     * @param values    The values of each attribute.
+     * @param decisions The possible decisions.
+     */
+    public Schema(String[] attrs, String[][] values, List<D> decisions) {
+        this(attrs, values, decisions, new double[attrs.length][]);
+    }
+
+    /**
+     * @param attrs     The attribute names.
+     * @param values    The values of each attribute.
+     * @param decisions The possible decisions.
+     * @param cuts      The bin cuts of each numeric attribute, in increasing
+     *                  order; null for other attributes.
+     */
+    public Schema(String[] attrs, String[][] values, List<D> decisions, double[][] cuts) {
+        this.attrs = attrs;
+        this.values = values;
+        this.decisions = decisions;
+        this.cuts = cuts;
+    }
+
+    /**
+     * @param cuts  The bin cuts of a numeric attribute, in increasing order.
+     * @return      The values of its bins: each cut as a string.
+     */
+    static String[] binValues(double[] cuts) {
+        String[] values = new String[cuts.length];
+        for (int b = 0; b < cuts.length; b++) {
+            values[b] = String.valueOf(cuts[b]);
+        }
+        return values;
+    }
+
+    /**
+     * @param attr  An attribute index.
+     * @return      Whether attr is numeric, and split on thresholds.
+     */
+    public boolean isNumeric(int attr) {
+        return cuts != null && cuts[attr] != null;
+    }
+
+    /**
+     * @param attr  A numeric attribute.
+     * @param x     A number.
+     * @return      The code of the bin x falls in.
+     */
+    public int bin(int attr, double x) {
+        double[] c = cuts[attr];
+        int b = Arrays.binarySearch(c, x);
+        if (b < 0) {
+            b = Math.min(-b - 1, c.length - 1);
+        }
+        return b;
+    }
+
+    /**
+     * Merge the dictionaries of schemas for different parts of the same
+     * data, such as the shards read by RandomForestInput.readDataset().
+     * Values and decisions keep the order they are first seen in, going
+     * through the schemas in order, so merging the schemas of consecutive
+     * shards gives the same codes as reading the data in one go.
+     *
+     * @param schemas   The schemas, which must have the same attributes
+     *                  unless they have no values at all.
+     * @return          A schema with every value and decision of schemas.
+     * @throws IllegalArgumentException If the schemas have different
+     *                                  attributes, or an attribute ends up
+     *                                  with too many values.
+     */
+    public static <D> Schema<D> merge(List<Schema<D>> schemas)
+        throws IllegalArgumentException
+    {
+        String[] attrs = new String[0];
+        for (Schema<D> schema : schemas) {
+            if (schema.attrs.length > attrs.length) {
+                attrs = schema.attrs;
+            }
+        }
+        List<List<String>> values = new ArrayList<List<String>>();
+        List<Map<String,Integer>> valueCodes = new ArrayList<Map<String,Integer>>();
+        for (int i = 0; i < attrs.length; i++) {
+            values.add(new ArrayList<String>());
+            valueCodes.add(new HashMap<String,Integer>());
+        }
+        List<D> decisions = new ArrayList<D>();
+        Map<D,Integer> decisionCodes = new HashMap<D,Integer>();
+        for (Schema<D> schema : schemas) {
+            if (schema.attrs.length != attrs.length && schema.numDecisions() > 0) {
+                throw new IllegalArgumentException("Schemas have different attributes.");
+            }
+            for (int i = 0; i < schema.attrs.length; i++) {
+                for (String value : schema.values[i]) {
+                    if (!valueCodes.get(i).containsKey(value)) {
+                        valueCodes.get(i).put(value, values.get(i).size());
+                        values.get(i).add(value);
+                    }
+                }
+            }
+            for (D decision : schema.decisions) {
+                if (!decisionCodes.containsKey(decision)) {
+                    decisionCodes.put(decision, decisions.size());
+                    decisions.add(decision);
+                }
+            }
+        }
+        String[][] merged = new String[attrs.length][];
+        double[][] cuts = new double[attrs.length][];
+        for (int i = 0; i < attrs.length; i++) {
+            cuts[i] = mergeCuts(schemas, i);
+            merged[i] = cuts[i] != null ? binValues(cuts[i])
+                : values.get(i).toArray(new String[0]);
+            Dataset.checkValues(attrs[i], merged[i].length);
+        }
+        return new Schema<D>(attrs, merged, decisions, cuts);
+    }
+
+    /**
+     * Merge the bins of a numeric attribute: every cut of every schema,
+     * thinned out evenly if there are too many.  A shard's bin then maps to
+     * the merged bin holding its cut, so the merge is only approximate when
+     * the shards were binned differently.
+     *
+     * The attribute is only numeric if it is in every schema that has any
+     * values for it, since other values can't be put in a bin.  Otherwise the
+     * caller merges its dictionaries as for any other attribute, the numeric
+     * shards' bins being values named after their cuts.
+     *
+     * @return The merged cuts; null if the attribute isn't numeric.
+     */
+    private static <D> double[] mergeCuts(List<Schema<D>> schemas, int attr) {
+        TreeSet<Double> all = new TreeSet<Double>();
+        boolean numeric = false;
+        for (Schema<D> schema : schemas) {
+            if (attr >= schema.numAttrs() || schema.values[attr].length == 0) {
+                // An empty shard says nothing about the attribute.
+                continue;
+            }
+            if (!schema.isNumeric(attr)) {
+                return null;
+            }
+            numeric = true;
+            for (double cut : schema.cuts[attr]) {
+                all.add(cut);
+            }
+        }
+        if (!numeric) {
+            return null;
+        }
+        double[] cuts = new double[all.size()];
+        int i = 0;
+        for (double cut : all) {
+            cuts[i++] = cut;
+        }
+        if (cuts.length <= Dataset.MAX_VALUES) {
+            return cuts;
+        }
+        // Keep an even spread of the cuts, always including the last.
+        double[] thinned = new double[Dataset.MAX_VALUES];
+        for (int b = 0; b < thinned.length; b++) {
+            thinned[b] = cuts[(int)((long)(b + 1) * cuts.length / thinned.length) - 1];
+        }
+        return thinned;
+    }
+
+    /**
+     * @return The number of attributes.
+     */
+    public int numAttrs() {
+        return attrs.length;
+    }
+
+    /**
+     * @return The number of distinct decisions.
+     */
+    public int numDecisions() {
+        return decisions.size();
+    }
+
+    /**
+     * @param code  A decision code.
+     * @return      The decision it stands for.
+     */
+    public D decision(int code) {
+        return decisions.get(code);
+    }
+
+    /**
+     * @param decision  A decision.
+     * @return          Its code, or -1 if it is not in this schema.
+     */
+    public int decisionCode(D decision) {
+        buildIndex();
+        Integer code = decisionCodes.get(decision);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @param attr  An attribute name.
+     * @return      Its index, or -1 if it is not in this schema.
+     */
+    public int attrCode(String attr) {
+        buildIndex();
+        Integer code = attrCodes.get(attr);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @param attr  An attribute index.
+     * @param value A value of that attribute.
+     * @return      The value's code, or -1 if it has never been seen; for a
+     *              numeric attribute, the code of its bin, or -1 if it isn't
+     *              a number.
+     */
+    public int valueCode(int attr, String value) {
+        if (isNumeric(attr)) {
+            try {
+                return bin(attr, Double.parseDouble(value));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        buildIndex();
+        Integer code = valueCodes[attr].get(value);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Encode the choices of a sample into a row of value codes.
+     *
+     * @param choices   The attr->value choices to encode.
+     * @return          The code of each attribute's value; -1 where the value
+     *                  is missing or was never seen.
+     */
+    public int[] encode(Map<String,String> choices) {
+        int[] row = new int[attrs.length];
+        for (int i = 0; i < attrs.length; i++) {
+            String value = choices.get(attrs[i]);
+            row[i] = value == null ? -1 : valueCode(i, value);
+        }
+        return row;
+    }
+
+    /**
+     * Build the reverse lookup maps if they don't exist yet.  They are
+     * transient, so this also runs after deserialization.
+     */
+    private void buildIndex() {
+        if (decisionCodes == null) {
+            synchronized (this) {
+                if (decisionCodes == null) {
+                    index();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill in the reverse lookup maps; decisionCodes is written last.
+     */
+    @SuppressWarnings("unchecked")
+    private void index() {
+        Map<String,Integer> attrCodes = new HashMap<String,Integer>();
+        Map<String,Integer>[] valueCodes = (Map<String,Integer>[])new Map<?,?>[attrs.length];
+        for (int i = 0; i < attrs.length; i++) {
+            attrCodes.put(attrs[i], i);
+            valueCodes[i] = new HashMap<String,Integer>();
+            for (int v = 0; v < values[i].length; v++) {
+                valueCodes[i].put(values[i][v], v);
+            }
+        }
+        Map<D,Integer> decisionCodes = new HashMap<D,Integer>();
+        for (int d = 0; d < decisions.size(); d++) {
+            decisionCodes.put(decisions.get(d), d);
+        }
+        this.attrCodes = attrCodes;
+        this.valueCodes = valueCodes;
+        this.decisionCodes = decisionCodes;
+    }
+
+}
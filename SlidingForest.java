@@ -0,0 +1,289 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A random forest that is kept up to date as data arrives, rather than
+ * regrown from the whole history.
+ *
+ * Samples are streamed in by add(), in batches, and the most recent window
+ * of them is kept in a ring of columns, so the oldest rows are overwritten
+ * as new ones come in.  update() grows a few new trees from the rows in the
+ * window and retires the oldest trees to keep the forest at its target
+ * size, so the cost of a refresh depends on the number of trees replaced
+ * and the size of the window, not on how much data has ever been seen.
+ *
+ * Every tree gets its own stream from the seed by the order it was grown
+ * in, as with growRandomForest(), and forest() hands out snapshots, so the
+ * forest can be scored while it is being updated.
+ */
+public class SlidingForest<D> {
+
+    /** The dictionaries every batch is encoded with. */
+    public final Schema<D> schema;
+
+    /** The number of trees the forest is kept at. */
+    private final int size;
+
+    /** The number of sample records to choose with replacement per tree. */
+    private final int n;
+
+    /** The number of attributes to choose from at each node. */
+    private final int m;
+
+    /** The master seed. */
+    private final long seed;
+
+    /** When to stop splitting the nodes of each tree. */
+    private final TreeLimits limits;
+
+    /** The threads to grow and score trees with. */
+    private final ForestEngine engine;
+
+    /** The value codes of each attribute for the rows in the window. */
+    private final byte[][] columns;
+
+    /** The decision code of each row in the window. */
+    private final short[] labels;
+
+    /** The number of rows in the window. */
+    private int count;
+
+    /** Where the next row goes in the ring. */
+    private int next;
+
+    /** The trees, oldest first. */
+    private final Deque<DecisionTree<D>> trees = new ArrayDeque<DecisionTree<D>>();
+
+    /** The number of trees grown so far; the index of the next one. */
+    private int grown;
+
+    /**
+     * Make a forest with no trees and an empty window, using the shared
+     * ForestEngine and growing the trees without limits.
+     *
+     * @param schema    The dictionaries the samples are encoded with.
+     * @param size      The number of trees to keep the forest at.
+     * @param window    The number of most recent rows to train from.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @throws IllegalArgumentException If size or window isn't positive.
+     */
+    public SlidingForest(Schema<D> schema, int size, int window, int n, int m, long seed)
+        throws IllegalArgumentException
+    {
+        this(schema, size, window, n, m, seed, TreeLimits.NONE, ForestEngine.shared());
+    }
+
+    /**
+     * Make a forest with no trees and an empty window, using the shared
+     * ForestEngine.
+     *
+     * @param schema    The dictionaries the samples are encoded with.
+     * @param size      The number of trees to keep the forest at.
+     * @param window    The number of most recent rows to train from.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @throws IllegalArgumentException If size or window isn't positive.
+     */
+    public SlidingForest(Schema<D> schema, int size, int window, int n, int m,
+            long seed, TreeLimits limits) throws IllegalArgumentException
+    {
+        this(schema, size, window, n, m, seed, limits, ForestEngine.shared());
+    }
+
+    /**
+     * Make a forest with no trees and an empty window, growing the trees
+     * without limits.
+     *
+     * @param schema    The dictionaries the samples are encoded with.
+     * @param size      The number of trees to keep the forest at.
+     * @param window    The number of most recent rows to train from.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param engine    The threads to grow and score trees with.
+     * @throws IllegalArgumentException If size or window isn't positive.
+     */
+    public SlidingForest(Schema<D> schema, int size, int window, int n, int m,
+            long seed, ForestEngine engine) throws IllegalArgumentException
+    {
+        this(schema, size, window, n, m, seed, TreeLimits.NONE, engine);
+    }
+
+    /**
+     * Make a forest with no trees and an empty window.
+     *
+     * @param schema    The dictionaries the samples are encoded with.
+     * @param size      The number of trees to keep the forest at.
+     * @param window    The number of most recent rows to train from.
+     * @param n         The number of sample records to choose with replacement
+     *                  for each tree.
+     * @param m         The best attribute at each node in a tree will be chosen
+     *                  from m attributes selected at random without replacement.
+     * @param seed      The master seed.
+     * @param limits    When to stop splitting the nodes of each tree.
+     * @param engine    The threads to grow and score trees with.
+     * @throws IllegalArgumentException If size or window isn't positive.
+     */
+    public SlidingForest(Schema<D> schema, int size, int window, int n, int m,
+            long seed, TreeLimits limits, ForestEngine engine)
+        throws IllegalArgumentException
+    {
+        if (size <= 0 || window <= 0) {
+            throw new IllegalArgumentException("Sliding forest needs a positive size "
+                    + "and window, not size=" + size + " window=" + window + ".");
+        }
+        this.schema = schema;
+        this.size = size;
+        this.n = n;
+        this.m = m;
+        this.seed = seed;
+        this.limits = limits;
+        this.engine = engine;
+        this.columns = new byte[schema.numAttrs()][window];
+        this.labels = new short[window];
+    }
+
+    /**
+     * Add a batch of rows to the window, pushing out the oldest rows once it
+     * is full.
+     *
+     * @param batch     The rows to add; recoded if it has another schema.
+     * @throws IllegalArgumentException If the batch has a value or decision
+     *                                  this forest's schema doesn't.
+     */
+    public void add(Dataset<D> batch) throws IllegalArgumentException {
+        if (batch.schema != schema) {
+            batch = batch.recode(schema);
+        }
+        synchronized (this) {
+            int window = labels.length;
+            // Only the last window rows of a big batch would survive anyway.
+            int from = Math.max(0, batch.size() - window);
+            while (from < batch.size()) {
+                // Copy as much as fits before the end of the ring.
+                int length = Math.min(batch.size() - from, window - next);
+                for (int i = 0; i < columns.length; i++) {
+                    System.arraycopy(batch.columns[i], from, columns[i], next, length);
+                }
+                System.arraycopy(batch.labels, from, labels, next, length);
+                from += length;
+                next = (next + length) % window;
+                count = Math.min(count + length, window);
+            }
+        }
+    }
+
+    /**
+     * Add a batch of samples to the window.
+     *
+     * @param samples   The samples to add.
+     * @throws IllegalArgumentException If a sample has a value or decision
+     *                                  this forest's schema doesn't.
+     */
+    public void add(List<Sample<D>> samples) throws IllegalArgumentException {
+        byte[][] columns = new byte[schema.numAttrs()][samples.size()];
+        short[] labels = new short[samples.size()];
+        int r = 0;
+        for (Sample<D> sample : samples) {
+            int[] row = schema.encode(sample.choices);
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] < 0) {
+                    throw new IllegalArgumentException("Sample has an unknown value for "
+                            + "attribute " + schema.attrs[i] + ".");
+                }
+                columns[i][r] = (byte)row[i];
+            }
+            int label = schema.decisionCode(sample.decision);
+            if (label < 0) {
+                throw new IllegalArgumentException("Sample has unknown decision "
+                        + sample.decision + ".");
+            }
+            labels[r] = (short)label;
+            r++;
+        }
+        add(new Dataset<D>(schema, columns, labels));
+    }
+
+    /**
+     * Grow new trees from the rows now in the window and add them to the
+     * forest, retiring the oldest trees if it grows past its target size.
+     * The first update of a forest would usually grow all of its trees.
+     *
+     * @param count     The number of trees to grow.
+     * @return          A snapshot of the updated forest.
+     * @throws IllegalArgumentException If count is negative, or the window
+     *                                  is empty.
+     */
+    public RandomForestSmp<D> update(int count) throws IllegalArgumentException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Can't grow " + count + " trees.");
+        }
+        // Copy the window and claim tree indices, so adds can go on meanwhile.
+        Dataset<D> window;
+        int first;
+        synchronized (this) {
+            if (this.count == 0) {
+                throw new IllegalArgumentException("Need samples to grow a DecisionTree.");
+            }
+            window = window();
+            first = grown;
+            grown += count;
+        }
+        List<DecisionTree<D>> grownTrees = engine.growTrees(window, first, count,
+                n, m, seed, limits, null);
+        synchronized (this) {
+            for (DecisionTree<D> tree : grownTrees) {
+                trees.addLast(tree);
+            }
+            while (trees.size() > size) {
+                trees.removeFirst();
+            }
+            return forest();
+        }
+    }
+
+    /**
+     * @return A snapshot of the forest as it is now.
+     */
+    public synchronized RandomForestSmp<D> forest() {
+        return new RandomForestSmp<D>(schema, new ArrayList<DecisionTree<D>>(trees), engine);
+    }
+
+    /**
+     * @return The number of trees in the forest.
+     */
+    public synchronized int size() {
+        return trees.size();
+    }
+
+    /**
+     * @return A copy of the rows in the window, oldest first.
+     */
+    public synchronized Dataset<D> window() {
+        // Once the ring is full, the oldest row is the one to be overwritten next.
+        int start = count < labels.length ? 0 : next;
+        byte[][] columns = new byte[this.columns.length][count];
+        short[] labels = new short[count];
+        int tail = Math.min(count, this.labels.length - start);
+        for (int i = 0; i < columns.length; i++) {
+            System.arraycopy(this.columns[i], start, columns[i], 0, tail);
+            System.arraycopy(this.columns[i], 0, columns[i], tail, count - tail);
+        }
+        System.arraycopy(this.labels, start, labels, 0, tail);
+        System.arraycopy(this.labels, 0, labels, tail, count - tail);
+        return new Dataset<D>(schema, columns, labels);
+    }
+
+}
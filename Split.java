@@ -0,0 +1,35 @@
+/**
+ * Represents a node of a decision tree that splits a numeric attribute on a
+ * threshold: rows in the bins up to and including threshold go to the first
+ * child, and the rest to the second.
+ */
+@SuppressWarnings("serial")
+class Split<D> extends Tree<D> {
+
+    public int threshold;
+
+    /**
+     * @param attr      The index of the numeric attribute to split on.
+     * @param threshold The last bin of attr that goes to left.
+     * @param left      The subtree for bins up to threshold.
+     * @param right     The subtree for bins after threshold.
+     * @param fallback  The leaf for rows with an unknown value of attr.
+     */
+    @SuppressWarnings("unchecked")
+    public Split(int attr, int threshold, DecisionTree<D> left, DecisionTree<D> right,
+            Decision<D> fallback)
+    {
+        super(attr, (DecisionTree<D>[])new DecisionTree<?>[] { left, right }, fallback);
+        this.threshold = threshold;
+    }
+
+    public Decision<D> leaf(int[] row) {
+        int v = row[attr];
+        return v < 0 ? fallback : children[v > threshold ? 1 : 0].leaf(row);
+    }
+
+    public Decision<D> leaf(Dataset<D> data, int row) {
+        return children[data.value(attr, row) > threshold ? 1 : 0].leaf(data, row);
+    }
+
+}
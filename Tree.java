@@ -0,0 +1,43 @@
+/**
+ * Represents a non-decision node of a decision tree.
+ * Has an attribute, with a child subtree for each of the attribute's values.
+ *
+ * A node also has a fallback leaf, deciding on the mode of the rows it was
+ * grown from.  Rows with a value the schema doesn't know (code -1) go to it,
+ * and the grower makes it the child of every value the node had no rows
+ * for, so those all share the one default branch.
+ */
+@SuppressWarnings("serial")
+class Tree<D> extends DecisionTree<D> {
+
+    public int attr;
+    public DecisionTree<D>[] children;
+    public Decision<D> fallback;
+
+    /**
+     * @param attr      The index of the attribute that this node splits on.
+     * @param children  The subtrees for each value code of attr.
+     * @param fallback  The leaf for rows with an unknown value of attr.
+     */
+    public Tree(int attr, DecisionTree<D>[] children, Decision<D> fallback) {
+        this.attr = attr;
+        this.children = children;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Recurse on the subtree for the value of attr in row.
+     *
+     * @param row   The value code of each attribute.
+     * @return      A leaf.
+     */
+    public Decision<D> leaf(int[] row) {
+        int v = row[attr];
+        return v < 0 ? fallback : children[v].leaf(row);
+    }
+
+    public Decision<D> leaf(Dataset<D> data, int row) {
+        return children[data.value(attr, row)].leaf(data, row);
+    }
+
+}
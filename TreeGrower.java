@@ -0,0 +1,671 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Grows a single DecisionTree from rows of a Dataset.
+ *
+ * All of the working state for one tree lives here so that growing it
+ * allocates little beyond the nodes it produces: the rows are weighted
+ * rather than copied, the ones with a non-zero weight are a single array
+ * that is partitioned in place into a contiguous range per child, the
+ * attributes still available are the front of a single index array, and
+ * the count tables are scratch space shared by every node.
+ *
+ * A numeric attribute is split in two on a threshold bin rather than once
+ * per value.  Its (bin x decision) table is filled by the same scan as any
+ * other attribute's, and every threshold is then tried by accumulating the
+ * table bin by bin, so the cost doesn't depend on the number of distinct
+ * numbers.  Numeric attributes stay available further down the tree.
+ *
+ * A parallel grower runs inside a ForkJoinPool.  Nodes with at least
+ * FORK_CUTOFF rows evaluate their candidate attributes as separate tasks,
+ * and children with that many rows are forked as tasks with their own copy
+ * of the attrs and scratch space; smaller nodes are grown sequentially.
+ * Every child gets a stream split from its parent's, so the tree comes out
+ * the same whether or not anything is forked.
+ *
+ * Growing stops early where the TreeLimits say so.  Values a node has no
+ * rows for all get the node's fallback leaf, and a node whose children all
+ * come out as the same leaf is replaced by that leaf.
+ */
+class TreeGrower<D> {
+
+    private static final double LOG_2 = Math.log(2);
+
+    /** Nodes with fewer rows than this are not split up into tasks. */
+    static final int FORK_CUTOFF = 2048;
+
+    /** The dataset holding the samples. */
+    private final Dataset<D> data;
+
+    /** The number of attributes to choose from at each node; 0 for all. */
+    private final int m;
+
+    /** When to stop splitting nodes. */
+    private final TreeLimits limits;
+
+    /** The random stream for the root of this tree. */
+    private final SplittableRandom random;
+
+    /** Whether to fork tasks for large nodes. */
+    private final boolean parallel;
+
+    /** The number of distinct decisions. */
+    private final int k;
+
+    /** How many times each row of data counts towards the tree. */
+    private final int[] weights;
+
+    /** The rows being trained from; each node owns a contiguous range. */
+    private final int[] rows;
+
+    /**
+     * The attribute indices.  At a node with n attributes left, those are
+     * attrs[0, n); the ones used further up the tree sit after them.
+     */
+    private final int[] attrs;
+
+    /** Scratch space for the decision counts of a node. */
+    private final int[] decisions;
+
+    /** Scratch space for the (value x decision) counts of an attribute. */
+    private final int[] counts;
+
+    /** Scratch space for the decision counts left of a threshold. */
+    private final int[] left;
+
+    /** One leaf per decision code, shared by the whole tree. */
+    private final Decision<D>[] leaves;
+
+    /** The threshold of the attribute bestAttribute() last chose, if numeric. */
+    private int threshold;
+
+    /** Nanoseconds this grower has spent choosing attributes, for metrics. */
+    private long splitNanos;
+
+    /** Nanoseconds this grower has spent partitioning rows, for metrics. */
+    private long partitionNanos;
+
+    /**
+     * @param data      The dataset holding the samples.
+     * @param weights   How many times each row of data counts towards the
+     *                  tree; rows with weight 0 are left out.
+     * @param m         The number of attributes to choose from at each node.
+     * @param limits    When to stop splitting nodes.
+     * @param random    The generator to choose attributes with.
+     * @param parallel  Whether to fork tasks for large nodes; if so, grow()
+     *                  must be called from within a ForkJoinPool.
+     */
+    @SuppressWarnings("unchecked")
+    TreeGrower(Dataset<D> data, int[] weights, int m, TreeLimits limits,
+            SplittableRandom random, boolean parallel)
+    {
+        this.data = data;
+        this.limits = limits;
+        this.random = random;
+        this.parallel = parallel;
+        this.weights = weights;
+        // Only the rows that were chosen need to be partitioned.
+        int numRows = 0;
+        for (int w : weights) {
+            if (w > 0) {
+                numRows++;
+            }
+        }
+        this.rows = new int[numRows];
+        for (int r = 0, j = 0; r < weights.length; r++) {
+            if (weights[r] > 0) {
+                rows[j++] = r;
+            }
+        }
+        this.m = m;
+        this.k = data.schema.numDecisions();
+        this.attrs = new int[data.schema.numAttrs()];
+        int maxValues = 0;
+        for (int i = 0; i < attrs.length; i++) {
+            attrs[i] = i;
+            maxValues = Math.max(maxValues, data.schema.values[i].length);
+        }
+        this.decisions = new int[k];
+        this.counts = new int[maxValues * k];
+        this.left = new int[k];
+        this.leaves = (Decision<D>[])new Decision<?>[k];
+    }
+
+    /**
+     * Make a grower for a forked subtree: it shares the rows, but has its own
+     * copy of the attrs and its own scratch space.
+     *
+     * @param parent    The grower of the node the subtree hangs from.
+     */
+    @SuppressWarnings("unchecked")
+    private TreeGrower(TreeGrower<D> parent) {
+        this.data = parent.data;
+        this.random = parent.random;
+        this.parallel = parent.parallel;
+        this.weights = parent.weights;
+        this.rows = parent.rows;
+        this.m = parent.m;
+        this.limits = parent.limits;
+        this.k = parent.k;
+        this.attrs = parent.attrs.clone();
+        this.decisions = new int[k];
+        this.counts = new int[parent.counts.length];
+        this.left = new int[k];
+        this.leaves = (Decision<D>[])new Decision<?>[k];
+    }
+
+    /**
+     * @return A decision tree grown from all of the rows.
+     * @throws IllegalArgumentException If there are no rows.
+     */
+    DecisionTree<D> grow() throws IllegalArgumentException {
+        DecisionTree<D> tree = grow(0, rows.length, attrs.length, 0, limits.maxNodes,
+                random);
+        ForestMetrics.growerTimes(splitNanos, partitionNanos);
+        return tree;
+    }
+
+    /**
+     * Grow a (sub)tree.
+     *
+     * @param from      The first of the rows to train from.
+     * @param to        One past the last of the rows to train from.
+     * @param numAttrs  The number of attributes left to use.
+     * @param depth     The depth of this node.
+     * @param budget    The most nodes this subtree can have.
+     * @param random    The random stream for this node.
+     * @return          A decision tree.
+     * @throws IllegalArgumentException If the range of rows is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private DecisionTree<D> grow(int from, int to, int numAttrs, int depth, int budget,
+            SplittableRandom random)
+        throws IllegalArgumentException
+    {
+        // Short circuit on empty list of samples.
+        if (from == to) {
+            throw new IllegalArgumentException("Need samples to grow a DecisionTree.");
+        }
+        // See how many unique decisions are left in the set of samples.
+        int total = countDecisions(from, to);
+        int mode = DecisionTree.mode(decisions);
+        // If only one, then decide on it.
+        if (decisions[mode] == total) {
+            return leaf(mode);
+        }
+        // If there are no attributes left somehow, take the mode decision.
+        if (numAttrs == 0) {
+            return leaf(mode);
+        }
+        // If the limits say to stop here, likewise.
+        if (depth >= limits.maxDepth || total < limits.minSamples
+                || !TreeLimits.canSplit(budget, 2)) {
+            return leaf(mode);
+        }
+        // Determine the attributes to select the best from.
+        int numSelected;
+        // If this is a random forest decision tree...
+        if (m > 0 && m < numAttrs) {
+            // move m attributes chosen at random to the front.
+            for (int i = 0; i < m; i++) {
+                swap(attrs, i, i + random.nextInt(numAttrs - i));
+            }
+            numSelected = m;
+        } else {
+            // otherwise just use all the attrs.
+            numSelected = numAttrs;
+        }
+        // Find the best attribute from the selected ones.
+        long start = System.nanoTime();
+        int best = bestAttribute(numSelected, from, to, total);
+        // If none of them gain anything, fall back to all of the attrs.
+        if (best < 0 && numSelected < numAttrs) {
+            best = bestAttribute(numAttrs, from, to, total);
+        }
+        long chosen = System.nanoTime();
+        splitNanos += chosen - start;
+        // If still nothing does, the samples can't be told apart.
+        if (best < 0) {
+            return leaf(mode);
+        }
+        int bestAttr = attrs[best];
+        boolean numeric = data.schema.isNumeric(bestAttr);
+        // If there isn't room for a child per value, stop here after all.
+        if (!numeric && !TreeLimits.canSplit(budget, data.schema.values[bestAttr].length)) {
+            return leaf(mode);
+        }
+        // The children's own searches overwrite the threshold field.
+        int splitAt = threshold;
+        int numValues;
+        int[] bounds;
+        int childAttrs;
+        if (numeric) {
+            // Split the rows in two on the threshold, keeping the attr.
+            numValues = 2;
+            bounds = new int[] { from, partitionAt(bestAttr, splitAt, from, to), to };
+            childAttrs = numAttrs;
+        } else {
+            // Move the best attr out of the children's range of attrs.
+            swap(attrs, best, numAttrs - 1);
+            // Split the rows into a contiguous range for each value.
+            numValues = data.schema.values[bestAttr].length;
+            bounds = partition(bestAttr, numValues, from, to);
+            childAttrs = numAttrs - 1;
+        }
+        partitionNanos += System.nanoTime() - chosen;
+        // Share out the node budget by the weight of each child's rows,
+        // unless it is unlimited.
+        int[] budgets = budget == Integer.MAX_VALUE ? null
+            : TreeLimits.share(budget, weigh(bounds), total);
+        // Construct the children array for this Tree.
+        DecisionTree<D>[] children = (DecisionTree<D>[])new DecisionTree<?>[numValues];
+        // Large children are forked; these are the ones that were.
+        List<Subtree> forked = null;
+        // Each child draws its attrs from the same order, whatever the ones
+        // grown before it in this thread did to it.
+        int[] order = Arrays.copyOf(attrs, childAttrs);
+        // For each value of the selected "best" attribute
+        for (int v = 0; v < numValues; v++) {
+            // If there aren't any samples with that value..,
+            if (bounds[v] == bounds[v + 1]) {
+                // it shares the fallback: the mode of the samples we had.
+                children[v] = leaf(mode);
+                continue;
+            }
+            System.arraycopy(order, 0, attrs, 0, childAttrs);
+            SplittableRandom childRandom = random.split();
+            int childBudget = budgets == null ? budget : budgets[v];
+            if (parallel && bounds[v + 1] - bounds[v] >= FORK_CUTOFF) {
+                // Big enough to be worth a task of its own.
+                if (forked == null) {
+                    forked = new ArrayList<Subtree>();
+                }
+                Subtree task = new Subtree(new TreeGrower<D>(this), v, bounds[v],
+                        bounds[v + 1], childAttrs, depth + 1, childBudget, childRandom);
+                task.fork();
+                forked.add(task);
+            } else {
+                // otherwise recursively call this function.
+                children[v] = grow(bounds[v], bounds[v + 1], childAttrs, depth + 1,
+                        childBudget, childRandom);
+            }
+        }
+        if (forked != null) {
+            for (Subtree task : forked) {
+                children[task.value] = task.join();
+            }
+        }
+        // Return a Tree object that splits on our "best" attribute, unless
+        // every child decides the same anyway.
+        if (numeric) {
+            return DecisionTree.collapse(new Split<D>(bestAttr, splitAt,
+                    children[0], children[1], leaf(mode)));
+        }
+        return DecisionTree.collapse(new Tree<D>(bestAttr, children, leaf(mode)));
+    }
+
+    /**
+     * Select the best attribute from the first few attrs for a range of rows.
+     * Best is defined as the one with the most information gain.
+     *
+     * For each attribute a single scan of the rows fills a (value x decision)
+     * table of weighted counts, and the information gain is computed from
+     * that table.  The decisions array must already hold the counts for the
+     * range.
+     *
+     * @param numAttrs  The number of attrs to choose from.
+     * @param from      The first row to find the information gain on.
+     * @param to        One past the last row to find the information gain on.
+     * @param total     The total weight of the rows.
+     * @return          The position in attrs of an attribute whose values
+     *                  best divide the data up by decision; -1 if none of them
+     *                  gain more than the limits' minGain.  If it is numeric, threshold is set to
+     *                  the bin to split it after.
+     */
+    private int bestAttribute(final int numAttrs, final int from, final int to,
+            final int total)
+    {
+        // The total entropy of the samples.
+        final double totalH = entropy(decisions, 0, total);
+        // The information gain of each attr.
+        final double[] gains = new double[numAttrs];
+        // The best threshold of each numeric attr.
+        final int[] thresholds = new int[numAttrs];
+        if (parallel && numAttrs > 1 && to - from >= FORK_CUTOFF) {
+            // Evaluate each attr as a task with its own count table.
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(numAttrs);
+            for (int i = 0; i < numAttrs; i++) {
+                final int attr = attrs[i];
+                final int index = i;
+                tasks.add(new RecursiveAction() {
+                    protected void compute() {
+                        int[] counts = new int[TreeGrower.this.counts.length];
+                        gains[index] = informationGain(attr, from, to, total, totalH,
+                                counts, new int[k], thresholds, index);
+                    }
+                });
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (int i = 0; i < numAttrs; i++) {
+                gains[i] = informationGain(attrs[i], from, to, total, totalH,
+                        counts, left, thresholds, i);
+            }
+        }
+        // The highest information gain found so far.
+        double maxIG = limits.minGain;
+        // The attr with the highest information gain so far.
+        int result = -1;
+        for (int i = 0; i < numAttrs; i++) {
+            if (gains[i] > maxIG) {
+                maxIG = gains[i];
+                result = i;
+            }
+        }
+        if (result >= 0) {
+            threshold = thresholds[result];
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the information gain of splitting a range of rows on an
+     * attribute, from a single scan of the rows.
+     *
+     * @param attr      The attribute to split on.
+     * @param from      The first row to find the information gain on.
+     * @param to        One past the last row to find the information gain on.
+     * @param total     The total weight of the rows.
+     * @param totalH    The entropy of the rows.
+     * @param counts    Scratch space for the (value x decision) counts.
+     * @param left      Scratch space for k decision counts.
+     * @param thresholds Gets the best threshold of a numeric attribute.
+     * @param index     Where in thresholds it goes.
+     * @return          The information gain; for a numeric attribute, that of
+     *                  splitting it on its best threshold.
+     */
+    private double informationGain(int attr, int from, int to, int total,
+            double totalH, int[] counts, int[] left, int[] thresholds, int index)
+    {
+        short[] labels = data.labels;
+        int numValues = data.schema.values[attr].length;
+        // Count the decisions for each value of this attribute.
+        Arrays.fill(counts, 0, numValues * k, 0);
+        byte[] column = data.columns[attr];
+        for (int j = from; j < to; j++) {
+            int r = rows[j];
+            counts[(column[r] & 0xFF) * k + (labels[r] & 0xFFFF)] += weights[r];
+        }
+        if (data.schema.isNumeric(attr)) {
+            return thresholdGain(counts, 0, numValues, k, decisions, 0, total, totalH,
+                    left, thresholds, index);
+        }
+        double informationGain = totalH;
+        // For each value of this attribute...
+        for (int v = 0; v < numValues; v++) {
+            int vTotal = 0;
+            for (int d = v * k; d < (v + 1) * k; d++) {
+                vTotal += counts[d];
+            }
+            // subtract IG equal to the entropy of its samples multiplied
+            // by the percentage of total samples they represent.
+            if (vTotal > 0) {
+                informationGain -= (double)vTotal / total
+                    * entropy(counts, v * k, vTotal);
+            }
+        }
+        return informationGain;
+    }
+
+    /**
+     * Calculates the entropy of a breakdown of decisions.
+     *
+     * @param counts    Holds the number of samples with each decision.
+     * @param from      The index in counts of the count for decision 0.
+     * @param total     The sum of the k counts.
+     * @return          The entropy of the samples counted.
+     */
+    private double entropy(int[] counts, int from, int total) {
+        double entropy_total = 0.0;
+        for (int d = from; d < from + k; d++) {
+            if (counts[d] == 0) {
+                continue;
+            }
+            // The portion of samples with the corresponding decision.
+            double portion = (double)counts[d] / total;
+            // Calculate the entropy and add it to the total.
+            entropy_total += -portion * Math.log(portion) / LOG_2;
+        }
+        return entropy_total;
+    }
+
+    /**
+     * Find the threshold that best splits a numeric attribute in two, by
+     * scanning its (bin x decision) table once and keeping running counts
+     * of the decisions in the bins up to each threshold.
+     *
+     * @param counts    Holds the weighted (bin x decision) counts.
+     * @param from      The index in counts of the count for bin 0, decision 0.
+     * @param numBins   The number of bins of the attribute.
+     * @param k         The number of decisions.
+     * @param totals    Holds the decision counts of all the bins.
+     * @param totalsFrom The index in totals of the count for decision 0.
+     * @param total     The sum of the totals.
+     * @param totalH    The entropy of the totals.
+     * @param left      Scratch space for k decision counts.
+     * @param thresholds Gets the last bin left of the best threshold, or -1
+     *                  if no threshold gains anything.
+     * @param index     Where in thresholds it goes.
+     * @return          The information gain of the best threshold.
+     */
+    static double thresholdGain(int[] counts, int from, int numBins, int k, int[] totals,
+            int totalsFrom, int total, double totalH, int[] left, int[] thresholds,
+            int index)
+    {
+        Arrays.fill(left, 0, k, 0);
+        int leftTotal = 0;
+        double best = 0.0;
+        thresholds[index] = -1;
+        // Every threshold but the last bin leaves something on the right.
+        for (int t = 0; t < numBins - 1; t++) {
+            int binTotal = 0;
+            for (int d = 0; d < k; d++) {
+                left[d] += counts[from + t * k + d];
+                binTotal += counts[from + t * k + d];
+            }
+            // An empty bin splits the same as the threshold before it.
+            if (binTotal == 0) {
+                continue;
+            }
+            leftTotal += binTotal;
+            if (leftTotal == total) {
+                break;
+            }
+            int rightTotal = total - leftTotal;
+            double leftH = 0.0;
+            double rightH = 0.0;
+            for (int d = 0; d < k; d++) {
+                int l = left[d];
+                int r = totals[totalsFrom + d] - l;
+                if (l > 0) {
+                    double portion = (double)l / leftTotal;
+                    leftH -= portion * Math.log(portion);
+                }
+                if (r > 0) {
+                    double portion = (double)r / rightTotal;
+                    rightH -= portion * Math.log(portion);
+                }
+            }
+            double gain = totalH - ((double)leftTotal / total * leftH
+                    + (double)rightTotal / total * rightH) / LOG_2;
+            if (gain > best) {
+                best = gain;
+                thresholds[index] = t;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fill the decisions array with the weighted decision counts for a range
+     * of rows.
+     *
+     * @return The total weight of the rows.
+     */
+    private int countDecisions(int from, int to) {
+        Arrays.fill(decisions, 0);
+        short[] labels = data.labels;
+        int total = 0;
+        for (int j = from; j < to; j++) {
+            int r = rows[j];
+            decisions[labels[r] & 0xFFFF] += weights[r];
+            total += weights[r];
+        }
+        return total;
+    }
+
+    /**
+     * @param bounds    The bounds of each child's rows, as from partition().
+     * @return          The total weight of each child's rows.
+     */
+    private int[] weigh(int[] bounds) {
+        int[] totals = new int[bounds.length - 1];
+        for (int v = 0; v < totals.length; v++) {
+            for (int j = bounds[v]; j < bounds[v + 1]; j++) {
+                totals[v] += weights[rows[j]];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Reorder a range of rows in place so that they are grouped by their
+     * value for an attribute, in value code order.
+     *
+     * @param attr      The attribute to group by.
+     * @param numValues The number of values of attr.
+     * @param from      The first row to reorder.
+     * @param to        One past the last row to reorder.
+     * @return          The bounds of each group: the rows with value v are
+     *                  [bounds[v], bounds[v + 1]).
+     */
+    private int[] partition(int attr, int numValues, int from, int to) {
+        byte[] column = data.columns[attr];
+        // Count the rows with each value to find where each group goes.
+        int[] bounds = new int[numValues + 1];
+        for (int j = from; j < to; j++) {
+            bounds[(column[rows[j]] & 0xFF) + 1]++;
+        }
+        bounds[0] = from;
+        for (int v = 0; v < numValues; v++) {
+            bounds[v + 1] += bounds[v];
+        }
+        // Swap each row into its group, filling the groups front to back.
+        int[] next = Arrays.copyOf(bounds, numValues);
+        for (int v = 0; v < numValues; v++) {
+            while (next[v] < bounds[v + 1]) {
+                int value = column[rows[next[v]]] & 0xFF;
+                if (value == v) {
+                    next[v]++;
+                } else {
+                    swap(rows, next[v], next[value]++);
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Reorder a range of rows in place so that the ones whose value for a
+     * numeric attribute is in a bin up to threshold come first.
+     *
+     * @param attr      The numeric attribute to split on.
+     * @param threshold The last bin that goes first.
+     * @param from      The first row to reorder.
+     * @param to        One past the last row to reorder.
+     * @return          The first row whose bin is after threshold.
+     */
+    private int partitionAt(int attr, int threshold, int from, int to) {
+        byte[] column = data.columns[attr];
+        int i = from;
+        int j = to;
+        while (i < j) {
+            if ((column[rows[i]] & 0xFF) <= threshold) {
+                i++;
+            } else {
+                swap(rows, i, --j);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @param code  A decision code.
+     * @return      The shared leaf for that decision.
+     */
+    private Decision<D> leaf(int code) {
+        if (leaves[code] == null) {
+            leaves[code] = new Decision<D>(data.schema, code);
+        }
+        return leaves[code];
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * A task that grows the subtree under one value of a node.
+     */
+    @SuppressWarnings("serial")
+    private class Subtree extends RecursiveTask<DecisionTree<D>> {
+
+        final TreeGrower<D> grower;
+        final int value;
+        final int from;
+        final int to;
+        final int numAttrs;
+        final int depth;
+        final int budget;
+        final SplittableRandom random;
+
+        /**
+         * @param grower    The grower to use, not shared with other tasks.
+         * @param value     The value code the subtree is for.
+         * @param from      The first of the rows to train from.
+         * @param to        One past the last of the rows to train from.
+         * @param numAttrs  The number of attributes left to use.
+         * @param depth     The depth of the subtree's root.
+         * @param budget    The most nodes the subtree can have.
+         * @param random    The random stream for the subtree's root.
+         */
+        Subtree(TreeGrower<D> grower, int value, int from, int to, int numAttrs,
+                int depth, int budget, SplittableRandom random)
+        {
+            this.grower = grower;
+            this.value = value;
+            this.from = from;
+            this.to = to;
+            this.numAttrs = numAttrs;
+            this.depth = depth;
+            this.budget = budget;
+            this.random = random;
+        }
+
+        protected DecisionTree<D> compute() {
+            DecisionTree<D> tree = grower.grow(from, to, numAttrs, depth, budget, random);
+            ForestMetrics.growerTimes(grower.splitNanos, grower.partitionNanos);
+            return tree;
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+import java.util.Arrays;
+
+/**
+ * Stopping criteria for growing a DecisionTree.  A node becomes a leaf
+ * deciding on the mode of its rows when it is pure or has no attributes
+ * left, as always, and also when any of these limits says so, which bounds
+ * the cost of growing a tree on noisy data and the size of the tree to be
+ * sent between processors and walked for every prediction.
+ *
+ * The node budget is shared out between a node's children in proportion to
+ * their weight of rows rather than used up in the order the nodes are
+ * grown, so a tree comes out the same whether or not its nodes are grown as
+ * separate tasks.  Every child of a node takes up a node of the budget, as
+ * it does in a CompiledForest, so a limited tree never compiles to more
+ * than maxNodes nodes.
+ */
+@SuppressWarnings("serial")
+public class TreeLimits implements java.io.Serializable {
+
+    /** No limits: grow every tree until its nodes are pure. */
+    public static final TreeLimits NONE =
+        new TreeLimits(Integer.MAX_VALUE, 1, 0.0, Integer.MAX_VALUE);
+
+    /** The deepest a node can be; the root is at depth 0. */
+    public final int maxDepth;
+
+    /** The least total weight of rows a node needs to be split. */
+    public final int minSamples;
+
+    /** The information gain a split must beat to be made. */
+    public final double minGain;
+
+    /** The most nodes a tree can have, leaves included. */
+    public final int maxNodes;
+
+    /**
+     * @param maxDepth      The deepest a node can be; the root is at depth 0.
+     * @param minSamples    The least total weight of rows a node needs to be
+     *                      split.
+     * @param minGain       The information gain a split must beat to be made.
+     * @param maxNodes      The most nodes a tree can have, leaves included.
+     * @throws IllegalArgumentException If a limit is negative, or maxNodes
+     *                                  is less than 1.
+     */
+    public TreeLimits(int maxDepth, int minSamples, double minGain, int maxNodes)
+        throws IllegalArgumentException
+    {
+        if (maxDepth < 0 || minSamples < 0 || !(minGain >= 0) || maxNodes < 1) {
+            throw new IllegalArgumentException("Bad tree limits: maxDepth=" + maxDepth
+                    + " minSamples=" + minSamples + " minGain=" + minGain
+                    + " maxNodes=" + maxNodes + ".");
+        }
+        this.maxDepth = maxDepth;
+        this.minSamples = minSamples;
+        this.minGain = minGain;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Read the limits from the forest.maxDepth, forest.minSamples,
+     * forest.minGain and forest.maxNodes properties; any not set are not
+     * limited.
+     *
+     * @return The limits.
+     * @throws IllegalArgumentException If a property isn't a valid limit.
+     */
+    public static TreeLimits fromProperties() throws IllegalArgumentException {
+        return new TreeLimits(
+                intProperty("forest.maxDepth", NONE.maxDepth),
+                intProperty("forest.minSamples", NONE.minSamples),
+                doubleProperty("forest.minGain", NONE.minGain),
+                intProperty("forest.maxNodes", NONE.maxNodes));
+    }
+
+    /**
+     * @param name      A property name.
+     * @param none      The value if the property isn't set.
+     * @return          The property's value.
+     * @throws IllegalArgumentException If the property isn't a whole number
+     *                                  of at least 0.
+     */
+    private static int intProperty(String name, int none) throws IllegalArgumentException {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return none;
+        }
+        try {
+            int limit = Integer.parseInt(value.trim());
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Bad " + name + " property: " + value + ".");
+    }
+
+    /**
+     * @param name      A property name.
+     * @param none      The value if the property isn't set.
+     * @return          The property's value.
+     * @throws IllegalArgumentException If the property isn't a number of at
+     *                                  least 0.
+     */
+    private static double doubleProperty(String name, double none)
+        throws IllegalArgumentException
+    {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return none;
+        }
+        try {
+            double limit = Double.parseDouble(value.trim());
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Bad " + name + " property: " + value + ".");
+    }
+
+    /**
+     * @param budget    The most nodes a node's subtree can have, itself
+     *                  included.
+     * @param numValues The number of children the node would have.
+     * @return          Whether the budget has room for the node and a leaf
+     *                  under each child.
+     */
+    static boolean canSplit(int budget, int numValues) {
+        return budget - 1 >= numValues;
+    }
+
+    /**
+     * Share out what is left of a node's budget between its children: one
+     * node each, and the rest in proportion to their weight.  An unlimited
+     * budget stays unlimited.
+     *
+     * @param budget    The most nodes the node's subtree can have.
+     * @param weights   The total weight of rows under each child.
+     * @param total     The sum of the weights.
+     * @return          The budget of each child.
+     */
+    static int[] share(int budget, int[] weights, int total) {
+        int[] budgets = new int[weights.length];
+        if (budget == Integer.MAX_VALUE) {
+            Arrays.fill(budgets, budget);
+            return budgets;
+        }
+        long extra = budget - 1 - weights.length;
+        for (int v = 0; v < weights.length; v++) {
+            budgets[v] = 1 + (int)(extra * weights[v] / total);
+        }
+        return budgets;
+    }
+
+    public String toString() {
+        return "maxDepth=" + maxDepth + " minSamples=" + minSamples
+            + " minGain=" + minGain + " maxNodes=" + maxNodes;
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Tallies a forest's votes on one row, tree by tree, and says when the
+ * remaining trees can no longer change the decision, so the rest of the
+ * forest need not be walked.
+ *
+ * The leader and the runner-up are kept up to date as each vote comes in,
+ * so checking whether to stop is a couple of integer comparisons.  The vote
+ * is certain once the runner-up could not catch the leader even if every
+ * remaining tree voted for it; that stops early without ever changing the
+ * decision, ties still going to the lowest decision code.  A confidence
+ * below 1 also stops once the leader's margin over the trees seen so far is
+ * that likely to hold over the whole forest, by Hoeffding's bound: each
+ * tree moves the margin by at most one vote either way, so the chance of a
+ * margin of e after t trees being wrong is at most exp(-e^2 / 2t).
+ */
+public class Vote<D> {
+
+    /** The dictionaries the decision codes refer to. */
+    private final Schema<D> schema;
+
+    /** The number of trees in the forest. */
+    private final int numTrees;
+
+    /** 2 ln(1 / (1 - confidence)): the least margin^2 / trees to stop at. */
+    private final double bound;
+
+    /** The votes for each decision code. */
+    private final int[] votes;
+
+    /** The decision code with the most votes; the lowest on ties. */
+    private int leader;
+
+    /** The most votes of any other decision code. */
+    private int second;
+
+    /** The number of votes counted. */
+    private int evaluated;
+
+    /**
+     * @param schema        The dictionaries the decision codes refer to.
+     * @param numTrees      The number of trees in the forest.
+     * @param confidence    How sure the vote must be to stop early, from 0 to
+     *                      1; 1 to stop only once the decision is certain.
+     */
+    public Vote(Schema<D> schema, int numTrees, double confidence) {
+        this.schema = schema;
+        this.numTrees = numTrees;
+        this.bound = confidence >= 1 ? Double.POSITIVE_INFINITY
+            : 2 * Math.log(1 / (1 - Math.max(0, confidence)));
+        this.votes = new int[schema.numDecisions()];
+    }
+
+    /**
+     * Count one tree's vote.
+     *
+     * @param code      The decision code the tree voted for.
+     * @return          Whether the vote is decided, so no more trees need to
+     *                  be counted.
+     */
+    public boolean add(int code) {
+        evaluated++;
+        int v = ++votes[code];
+        if (code != leader) {
+            if (v > votes[leader] || (v == votes[leader] && code < leader)) {
+                // The old leader had at least as many votes as anyone else.
+                second = votes[leader];
+                leader = code;
+            } else if (v > second) {
+                second = v;
+            }
+        }
+        return done();
+    }
+
+    /**
+     * @return Whether the remaining trees can't change the decision, or the
+     *         decision is as sure as asked for.
+     */
+    public boolean done() {
+        int lead = votes[leader];
+        if (second + (numTrees - evaluated) < lead) {
+            return true;
+        }
+        double margin = lead - second;
+        return evaluated > 0 && margin * margin >= bound * evaluated;
+    }
+
+    /**
+     * @return The decision code with the most votes so far; the lowest on
+     *         ties.
+     */
+    public int code() {
+        return leader;
+    }
+
+    /**
+     * @return The decision with the most votes so far.
+     */
+    public D decision() {
+        return schema.decision(leader);
+    }
+
+    /**
+     * @param code      A decision code.
+     * @return          The number of votes for it so far.
+     */
+    public int votes(int code) {
+        return votes[code];
+    }
+
+    /**
+     * @return The number of trees whose votes were counted.
+     */
+    public int evaluated() {
+        return evaluated;
+    }
+
+    /**
+     * @return The number of trees in the forest.
+     */
+    public int numTrees() {
+        return numTrees;
+    }
+
+    public String toString() {
+        return decision() + " (" + votes[leader] + " of " + evaluated + " trees evaluated, "
+            + numTrees + " in the forest)";
+    }
+
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * The data files the benchmarks run on, named by a "data" parameter:
+ * "mushrooms" for the mushroom data in the repository (or the file named by
+ * the forest.data property), or "synthetic:N" for N rows of generated data
+ * shaped like it.
+ */
+final class Data {
+
+    /** The number of attributes in synthetic data. */
+    static final int NUM_ATTRS = 22;
+
+    /** Synthetic files already written, by name. */
+    private static final Map<String,File> files = new HashMap<String,File>();
+
+    private Data() {
+    }
+
+    /**
+     * @param name  The data parameter.
+     * @return      The path of the data file it names.
+     */
+    static synchronized String file(String name) throws IOException {
+        if (name.equals("mushrooms")) {
+            return System.getProperty("forest.data", "mushrooms.data");
+        }
+        if (!name.startsWith("synthetic:")) {
+            throw new IllegalArgumentException("Unknown data " + name + ".");
+        }
+        File file = files.get(name);
+        if (file == null) {
+            file = synthetic(Integer.parseInt(name.substring("synthetic:".length())));
+            files.put(name, file);
+        }
+        return file.getPath();
+    }
+
+    /**
+     * Write rows of categorical data in the mushroom data's format: the
+     * decision, then a one letter value for each attribute.  Attribute i has
+     * 2 + i % 11 values, and the decision depends on a few attributes, with
+     * some noise, so trees have some depth to them.
+     *
+     * @param rows  The number of rows.
+     * @return      A temporary file holding them, deleted on exit.
+     */
+    private static File synthetic(int rows) throws IOException {
+        File file = File.createTempFile("forest-synthetic-" + rows + "-", ".data");
+        file.deleteOnExit();
+        SplittableRandom random = new SplittableRandom(rows);
+        BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16);
+        try {
+            int[] values = new int[NUM_ATTRS];
+            for (int r = 0; r < rows; r++) {
+                for (int i = 0; i < NUM_ATTRS; i++) {
+                    values[i] = random.nextInt(2 + i % 11);
+                }
+                boolean poisonous = (values[4] + values[8] * values[19]) % 3 == 0
+                    ^ values[2] == 1 ^ random.nextInt(20) == 0;
+                out.write(poisonous ? 'p' : 'e');
+                for (int i = 0; i < NUM_ATTRS; i++) {
+                    out.write(',');
+                    out.write('a' + values[i]);
+                }
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
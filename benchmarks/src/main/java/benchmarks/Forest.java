@@ -0,0 +1,162 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Handles on the forest code.  It lives in the default package, which can't
+ * be imported, and JMH won't run benchmarks from the default package, so the
+ * benchmarks get at it through method handles.  Each handle has the
+ * default package's types erased to Object but keeps every other type, so
+ * that invokeExact() neither boxes nor casts, and the handles are constants
+ * the JIT can inline through.
+ */
+final class Forest {
+
+    /** RandomForestInput.readData(String, Map): List */
+    static final MethodHandle READ_DATA;
+
+    /** RandomForestInput.readDataset(String): Dataset */
+    static final MethodHandle READ_DATASET;
+
+    /** Dataset.size(): int */
+    static final MethodHandle SIZE;
+
+    /** Dataset.row(int): int[] */
+    static final MethodHandle ROW;
+
+    /** Dataset.schema.numDecisions(): int */
+    static final MethodHandle NUM_DECISIONS;
+
+    /** DecisionTree.growDecisionTree(Dataset): DecisionTree */
+    static final MethodHandle GROW_DECISION_TREE;
+
+    /** RandomForestSmp.growRandomForest(Dataset, int, int, int, long): RandomForestSmp */
+    static final MethodHandle GROW_RANDOM_FOREST_SMP;
+
+    /** RandomForest.decide(int[]): Object */
+    static final MethodHandle DECIDE;
+
+    /** RandomForestSmp.test(Dataset): int */
+    static final MethodHandle TEST;
+
+    /** new TreeGrower(Dataset, int[], int, TreeLimits, SplittableRandom, boolean) */
+    static final MethodHandle NEW_TREE_GROWER;
+
+    /** TreeLimits.NONE, to grow trees as deep as they go */
+    static final Object NO_LIMITS;
+
+    /** TreeGrower.countDecisions(int from, int to): int */
+    static final MethodHandle COUNT_DECISIONS;
+
+    /** TreeGrower.bestAttribute(int numAttrs, int from, int to, int total): int */
+    static final MethodHandle BEST_ATTRIBUTE;
+
+    /** TreeGrower.entropy(int[] counts, int from, int total): double */
+    static final MethodHandle ENTROPY;
+
+    static {
+        try {
+            Class<?> input = Class.forName("RandomForestInput");
+            Class<?> dataset = Class.forName("Dataset");
+            Class<?> schema = Class.forName("Schema");
+            Class<?> decisionTree = Class.forName("DecisionTree");
+            Class<?> forest = Class.forName("RandomForest");
+            Class<?> forestSmp = Class.forName("RandomForestSmp");
+            Class<?> grower = Class.forName("TreeGrower");
+            Class<?> limits = Class.forName("TreeLimits");
+
+            READ_DATA = method(input, "readData", String.class, Map.class);
+            READ_DATASET = method(input, "readDataset", String.class);
+            SIZE = method(dataset, "size");
+            ROW = method(dataset, "row", int.class);
+            MethodHandle getSchema = MethodHandles.lookup()
+                .unreflectGetter(dataset.getField("schema"));
+            NUM_DECISIONS = MethodHandles.filterReturnValue(
+                    getSchema.asType(erase(getSchema.type())),
+                    method(schema, "numDecisions"));
+            GROW_DECISION_TREE = method(decisionTree, "growDecisionTree", dataset);
+            GROW_RANDOM_FOREST_SMP = method(forestSmp, "growRandomForest",
+                    dataset, int.class, int.class, int.class, long.class);
+            DECIDE = method(forest, "decide", int[].class);
+            TEST = method(forestSmp, "test", dataset);
+            Constructor<?> c = grower.getDeclaredConstructor(
+                    dataset, int[].class, int.class, limits, SplittableRandom.class,
+                    boolean.class);
+            c.setAccessible(true);
+            MethodHandle h = MethodHandles.lookup().unreflectConstructor(c);
+            NEW_TREE_GROWER = h.asType(erase(h.type()));
+            NO_LIMITS = limits.getField("NONE").get(null);
+            COUNT_DECISIONS = method(grower, "countDecisions", int.class, int.class);
+            BEST_ATTRIBUTE = method(grower, "bestAttribute",
+                    int.class, int.class, int.class, int.class);
+            ENTROPY = method(grower, "entropy", int[].class, int.class, int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Forest() {
+    }
+
+    /**
+     * @return A handle on a method, whatever its access, with the default
+     *         package's types erased.
+     */
+    private static MethodHandle method(Class<?> c, String name, Class<?>... params)
+        throws ReflectiveOperationException
+    {
+        Method m = c.getDeclaredMethod(name, params);
+        m.setAccessible(true);
+        MethodHandle h = MethodHandles.lookup().unreflect(m);
+        return h.asType(erase(h.type()));
+    }
+
+    /**
+     * @return type with each class from the default package replaced by
+     *         Object.
+     */
+    private static MethodType erase(MethodType type) {
+        for (int i = 0; i < type.parameterCount(); i++) {
+            type = type.changeParameterType(i, erase(type.parameterType(i)));
+        }
+        return type.changeReturnType(erase(type.returnType()));
+    }
+
+    private static Class<?> erase(Class<?> c) {
+        return c.isPrimitive() || c.isArray() || c.getName().indexOf('.') >= 0
+            ? c : Object.class;
+    }
+
+    /**
+     * Read a data file into a Dataset.
+     */
+    static Object readDataset(String file) throws Throwable {
+        return (Object)READ_DATASET.invokeExact(file);
+    }
+
+    /**
+     * @return The value codes of every row of a Dataset.
+     */
+    static int[][] rows(Object dataset) throws Throwable {
+        int[][] rows = new int[(int)SIZE.invokeExact(dataset)][];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = (int[])ROW.invokeExact(dataset, r);
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Object> readData(String file, Map<String,List<String>> attrs)
+        throws Throwable
+    {
+        return (List<Object>)READ_DATA.invokeExact(file, (Map)attrs);
+    }
+
+}
@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deciding single rows, and testing a whole dataset, with a forest grown
+ * from that dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferenceBenchmark {
+
+    @Param({"mushrooms", "synthetic:100000"})
+    public String data;
+
+    @Param({"100"})
+    public int trees;
+
+    /** The Dataset. */
+    Object dataset;
+
+    /** A RandomForestSmp grown from the dataset. */
+    Object forest;
+
+    /** The value codes of each row. */
+    int[][] rows;
+
+    /** The next row to decide. */
+    int next;
+
+    @Setup
+    public void setup() throws Throwable {
+        dataset = Forest.readDataset(Data.file(data));
+        rows = Forest.rows(dataset);
+        int m = (int)Math.round(Math.sqrt(rows[0].length));
+        forest = (Object)Forest.GROW_RANDOM_FOREST_SMP.invokeExact(
+                dataset, trees, rows.length, m, 1L);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object decide() throws Throwable {
+        int[] row = rows[next];
+        next = next + 1 == rows.length ? 0 : next + 1;
+        return (Object)Forest.DECIDE.invokeExact(forest, row);
+    }
+
+    @Benchmark
+    public int test() throws Throwable {
+        return (int)Forest.TEST.invokeExact(forest, dataset);
+    }
+
+}
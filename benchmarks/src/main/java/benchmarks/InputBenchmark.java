@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a data file, as Samples and as a Dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InputBenchmark {
+
+    @Param({"mushrooms", "synthetic:100000"})
+    public String data;
+
+    /** The path of the data file. */
+    String file;
+
+    @Setup
+    public void setup() throws Throwable {
+        file = Data.file(data);
+    }
+
+    @Benchmark
+    public List<Object> readData() throws Throwable {
+        return Forest.readData(file, new HashMap<String,List<String>>());
+    }
+
+    @Benchmark
+    public Object readDataset() throws Throwable {
+        return Forest.readDataset(file);
+    }
+
+}
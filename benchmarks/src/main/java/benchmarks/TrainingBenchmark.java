@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Growing a decision tree, and the attribute selection at its root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @Param({"mushrooms", "synthetic:100000"})
+    public String data;
+
+    /** The Dataset. */
+    Object dataset;
+
+    /** A TreeGrower over every row of the dataset. */
+    Object grower;
+
+    int numRows;
+    int numAttrs;
+
+    /** Decision counts to find the entropy of. */
+    int[] counts;
+    int total;
+
+    @Setup
+    public void setup() throws Throwable {
+        dataset = Forest.readDataset(Data.file(data));
+        numRows = (int)Forest.SIZE.invokeExact(dataset);
+        numAttrs = ((int[])Forest.ROW.invokeExact(dataset, 0)).length;
+        int[] weights = new int[numRows];
+        Arrays.fill(weights, 1);
+        grower = (Object)Forest.NEW_TREE_GROWER.invokeExact(
+                dataset, weights, 0, Forest.NO_LIMITS, new SplittableRandom(1), false);
+        counts = new int[(int)Forest.NUM_DECISIONS.invokeExact(dataset)];
+        for (int d = 0; d < counts.length; d++) {
+            counts[d] = numRows / counts.length + d;
+            total += counts[d];
+        }
+    }
+
+    @Benchmark
+    public Object growDecisionTree() throws Throwable {
+        return (Object)Forest.GROW_DECISION_TREE.invokeExact(dataset);
+    }
+
+    @Benchmark
+    public int bestAttribute() throws Throwable {
+        int total = (int)Forest.COUNT_DECISIONS.invokeExact(grower, 0, numRows);
+        return (int)Forest.BEST_ATTRIBUTE.invokeExact(grower, numAttrs, 0, numRows, total);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double entropy() throws Throwable {
+        return (double)Forest.ENTROPY.invokeExact(grower, counts, 0, total);
+    }
+
+}
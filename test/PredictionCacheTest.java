@@ -0,0 +1,49 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that a PredictionCache never changes a forest's decisions.
+ */
+public class PredictionCacheTest {
+
+    @Test
+    public void cachedDecisionsMatchUncached() throws Exception {
+        Dataset<String> data = RandomForestInput.readDataset("mushrooms.data");
+        CompiledForest<String> forest =
+            RandomForest.growRandomForest(data, 10, 500, 5, 7L).compile();
+        PredictionCache<String> cache = new PredictionCache<String>(1024);
+        int n = 2000;
+        int[][] rows = new int[n][];
+        int[] expected = new int[n];
+        for (int r = 0; r < n; r++) {
+            rows[r] = data.row(r);
+            expected[r] = forest.predict(rows[r]);
+        }
+        // Twice over, so the second pass hits what the first put.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int r = 0; r < n; r++) {
+                assertEquals("row " + r, expected[r], cache.predict(forest, rows[r]));
+            }
+            int[] decisions = new int[n];
+            cache.predictBatch(forest, rows, decisions);
+            assertArrayEquals(expected, decisions);
+        }
+        assertTrue(cache.hits() > 0);
+        assertTrue(cache.size() <= 1024);
+    }
+
+    @Test
+    public void unknownValuesDontMatchTheLastCode() {
+        PredictionCache<String> cache = new PredictionCache<String>(16);
+        Object model = new Object();
+        // A get() makes the cache fill for the model.
+        assertEquals(-1, cache.get(model, new int[] { 1, 255 }));
+        cache.put(model, new int[] { 1, 255 }, 0);
+        assertEquals(-1, cache.get(model, new int[] { 1, -1 }));
+        assertEquals(0, cache.get(model, new int[] { 1, 255 }));
+    }
+
+}
@@ -0,0 +1,183 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that PredictionServer answers rows and requests as documented.
+ */
+public class PredictionServerTest {
+
+    /** Every row of the mushroom data. */
+    private static Dataset<String> data;
+
+    /** The model served. */
+    private static CompiledForest<String> forest;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void grow() throws Exception {
+        data = RandomForestInput.readDataset("mushrooms.data");
+        forest = RandomForest.growRandomForest(data, 10, 500, 5, 7L).compile();
+    }
+
+    @Test
+    public void answersEachLineWithTheForestsDecision() throws Exception {
+        PredictionServer server = new PredictionServer(forest, 0, 8, 100, 64,
+                ForestEngine.shared());
+        try {
+            Client client = new Client(server);
+            try {
+                for (int r = 0; r < 20; r++) {
+                    assertEquals("row " + r, forest.decide(data.row(r)),
+                            client.ask(line(data, r)));
+                }
+                assertEquals("ERROR Expected " + data.schema.numAttrs()
+                        + " values but got 3.", client.ask("no,such,row"));
+                assertEquals("ERROR LOAD is turned off.", client.ask("LOAD forest.bin"));
+            } finally {
+                client.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void unseenValuesTakeTheFallback() throws Exception {
+        PredictionServer server = new PredictionServer(forest, 0, 8, 100, 64,
+                ForestEngine.shared());
+        try {
+            Client client = new Client(server);
+            try {
+                // Each attribute in turn gets a value the model never saw.
+                for (int i = 0; i < data.schema.numAttrs(); i++) {
+                    int[] row = data.row(0);
+                    row[i] = -1;
+                    String[] fields = line(data, 0).split(",");
+                    fields[i] = "unseen";
+                    StringBuilder line = new StringBuilder(fields[0]);
+                    for (int j = 1; j < fields.length; j++) {
+                        line.append(',').append(fields[j]);
+                    }
+                    assertEquals("attribute " + i, forest.decide(row),
+                            client.ask(line.toString()));
+                }
+            } finally {
+                client.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void loadsOnlyFromTheModelDirectory() throws Exception {
+        File dir = folder.newFolder("models");
+        RandomForest.growRandomForest(data, 3, 500, 5, 8L).save(
+                new File(dir, "small.bin").getPath());
+        folder.newFile("outside.bin");
+        PredictionServer server = new PredictionServer(forest, 0, 8, 100, 64,
+                ForestEngine.shared(), null, dir);
+        try {
+            Client client = new Client(server);
+            try {
+                assertEquals("OK 3 trees", client.ask("LOAD small.bin"));
+                // Missing and outside files get the same reply.
+                assertEquals("ERROR Can't load model missing.bin.",
+                        client.ask("LOAD missing.bin"));
+                assertEquals("ERROR Can't load model ../outside.bin.",
+                        client.ask("LOAD ../outside.bin"));
+            } finally {
+                client.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void closeAnswersRowsStillWaiting() throws Exception {
+        // Rows wait up to a minute for a batch that never fills.
+        final PredictionServer server = new PredictionServer(forest, 0, 64, 60000000L,
+                64, ForestEngine.shared());
+        Client client = new Client(server);
+        try {
+            new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                        server.close();
+                    } catch (Exception e) {
+                        // The test fails on its own.
+                    }
+                }
+            }.start();
+            assertEquals("ERROR Server is closed.", client.ask(line(data, 0)));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * @return The attribute values of row r, as a line of a data file
+     *         without the decision.
+     */
+    static String line(Dataset<String> data, int r) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < data.schema.numAttrs(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(data.schema.values[i][data.value(i, r)]);
+        }
+        return line.toString();
+    }
+
+    /**
+     * A connection to a server that sends a line at a time.
+     */
+    static class Client {
+
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(PredictionServer server) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.port());
+            socket.setSoTimeout(10000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return The reply to line.
+         */
+        String ask(String line) throws IOException {
+            out.write(line + "\n");
+            out.flush();
+            return in.readLine();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,518 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the ways of reading, growing and running a forest agree with
+ * each other on the mushroom data.
+ */
+public class RandomForestTest {
+
+    /** The rows the forests are grown from. */
+    private static Dataset<String> train;
+
+    /** The rows the forests are run against. */
+    private static Dataset<String> test;
+
+    /** A forest grown sequentially from train. */
+    private static RandomForest<String> forest;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void grow() throws Exception {
+        Dataset<String> data = RandomForestInput.readDataset("mushrooms.data");
+        train = data.range(0, data.size() * 3 / 4);
+        test = data.range(data.size() * 3 / 4, data.size());
+        forest = RandomForest.growRandomForest(train, 30, 1000, 5, 42L);
+    }
+
+    @Test
+    public void fromSamplesEncodesEveryChoice() throws Exception {
+        Map<String,List<String>> attrs = new LinkedHashMap<String,List<String>>();
+        List<Sample<String>> samples = RandomForestInput.readData("mushrooms.data", attrs);
+        Dataset<String> encoded = Dataset.fromSamples(attrs, samples);
+        assertEquals(samples.size(), encoded.size());
+        int r = 0;
+        for (Sample<String> sample : samples) {
+            assertEquals(sample.decision, encoded.decision(r));
+            for (int i = 0; i < encoded.schema.numAttrs(); i++) {
+                assertEquals(sample.choices.get(encoded.schema.attrs[i]),
+                        encoded.schema.values[i][encoded.value(i, r)]);
+            }
+            r++;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromSamplesRejectsValuesNotInTheDictionaries() {
+        Map<String,List<String>> attrs = new LinkedHashMap<String,List<String>>();
+        attrs.put("color", Arrays.asList("red", "blue"));
+        Map<String,String> choices = new HashMap<String,String>();
+        choices.put("color", "green");
+        Dataset.fromSamples(attrs,
+                Collections.singletonList(new Sample<String>(choices, "yes")));
+    }
+
+    @Test
+    public void compiledForestDecidesAsTheTrees() {
+        CompiledForest<String> compiled = forest.compile();
+        assertEquals(forest.trees.size(), compiled.size());
+        for (int r = 0; r < test.size(); r++) {
+            int[] row = test.row(r);
+            for (int t = 0; t < compiled.size(); t++) {
+                assertEquals("row " + r + " tree " + t,
+                        forest.trees.get(t).leaf(row).code, compiled.classify(t, row));
+            }
+            int code = compiled.predict(row);
+            assertEquals("row " + r, forest.decide(row), compiled.schema.decision(code));
+            assertEquals("row " + r, forest.decide(row), compiled.decide(row));
+        }
+    }
+
+    @Test
+    public void predictBatchMatchesPredict() {
+        CompiledForest<String> compiled = forest.compile();
+        int k = compiled.schema.numDecisions();
+        int[][] rows = new int[test.size()][];
+        int[] expected = new int[test.size()];
+        for (int r = 0; r < test.size(); r++) {
+            rows[r] = test.row(r);
+            expected[r] = compiled.predict(rows[r]);
+        }
+        assertArrayEquals(expected, compiled.predictBatch(test));
+        int[] decisions = new int[rows.length];
+        compiled.predictBatch(rows, new int[rows.length * k], decisions);
+        assertArrayEquals(expected, decisions);
+        // A range that doesn't start on a block boundary.
+        int from = CompiledForest.BLOCK / 2 + 1;
+        decisions = new int[test.size() - from];
+        compiled.predictBatch(test, from, test.size(), new int[decisions.length * k],
+                decisions);
+        assertArrayEquals(Arrays.copyOfRange(expected, from, test.size()), decisions);
+    }
+
+    @Test
+    public void earlyVoteMatchesFullVote() {
+        CompiledForest<String> compiled = forest.compile();
+        int k = compiled.schema.numDecisions();
+        for (int r = 0; r < test.size(); r++) {
+            int[] row = test.row(r);
+            // Count every tree's vote, ties going to the lowest code.
+            int[] votes = new int[k];
+            for (int t = 0; t < compiled.size(); t++) {
+                votes[compiled.classify(t, row)]++;
+            }
+            int mode = 0;
+            for (int d = 1; d < k; d++) {
+                if (votes[d] > votes[mode]) {
+                    mode = d;
+                }
+            }
+            Vote<String> vote = compiled.vote(row, 1);
+            assertEquals("row " + r, mode, vote.code());
+            assertTrue(vote.evaluated() <= compiled.size());
+            assertEquals("row " + r, mode, forest.vote(row, 1).code());
+        }
+    }
+
+    @Test
+    public void smpGrowsTheSameTreesAsSequential() throws Exception {
+        // Four copies of the training rows, so that well over FORK_CUTOFF
+        // distinct rows are drawn: the root evaluates its attributes as
+        // tasks, and its big children are grown as tasks of their own.
+        int[] rows = new int[train.size() * 4];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = r % train.size();
+        }
+        Dataset<String> big = train.select(rows);
+        int n = big.size();
+        assertTrue(n / 4 >= 2 * TreeGrower.FORK_CUTOFF);
+        RandomForest<String> seq = RandomForest.growRandomForest(big, 8, n, 5, 42L);
+        RandomForestSmp<String> smp = RandomForestSmp.growRandomForest(big, 8, n, 5, 42L);
+        assertEquals(seq.trees.size(), smp.trees.size());
+        for (int t = 0; t < seq.trees.size(); t++) {
+            assertArrayEquals("tree " + t, DecisionTree.encode(seq.trees.get(t)),
+                    DecisionTree.encode(smp.trees.get(t)));
+        }
+    }
+
+    @Test
+    public void smpTalliesTheSameOutOfBagVotesAsSequential() throws Exception {
+        OutOfBag<String> seq = new OutOfBag<String>(train);
+        OutOfBag<String> smp = new OutOfBag<String>(train);
+        RandomForest.growRandomForest(train, 40, 1000, 5, 42L, TreeLimits.NONE, seq);
+        RandomForestSmp.growRandomForest(train, 40, 1000, 5, 42L, TreeLimits.NONE, smp);
+        int k = train.schema.numDecisions();
+        for (int r = 0; r < train.size(); r++) {
+            for (int d = 0; d < k; d++) {
+                assertEquals("row " + r, seq.votes(r, d), smp.votes(r, d));
+            }
+        }
+        assertTrue(seq.numVoted() > 0);
+        assertEquals(seq.numVoted(), smp.numVoted());
+        assertEquals(seq.correct(), smp.correct());
+    }
+
+    @Test
+    public void parallelParseMatchesReadData() throws Exception {
+        // Several MB, so the file is parsed as several chunks, with values
+        // and a decision first seen in later chunks.  The file read in
+        // parallel also has CRLF line ends and blank lines; readData()
+        // doesn't skip blank lines, so it gets the same rows without them.
+        File file = folder.newFile("rows.csv");
+        File plain = folder.newFile("plain.csv");
+        Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8);
+        Writer plainOut = new OutputStreamWriter(new FileOutputStream(plain),
+                StandardCharsets.UTF_8);
+        SplittableRandom random = new SplittableRandom(11);
+        int numRows = 200000;
+        for (int r = 0; r < numRows; r++) {
+            StringBuilder line = new StringBuilder();
+            line.append(r > numRows * 9 / 10 && random.nextInt(4) == 0 ? "late"
+                    : "d" + random.nextInt(3));
+            int limit = 2 + (int)(198L * r / numRows);
+            for (int i = 0; i < 6; i++) {
+                line.append(",v").append(random.nextInt(limit));
+            }
+            out.write(line + "\r\n");
+            plainOut.write(line + "\n");
+            if (r % 1000 == 0) {
+                out.write("\r\n\n");
+            }
+        }
+        out.close();
+        plainOut.close();
+        assertTrue(file.length() >= 4 * RandomForestInput.MIN_CHUNK_SIZE);
+
+        Dataset<String> parsed = RandomForestInput.readDataset(file.getPath());
+        Map<String,List<String>> attrs = new LinkedHashMap<String,List<String>>();
+        Dataset<String> expected = Dataset.fromSamples(attrs,
+                RandomForestInput.readData(plain.getPath(), attrs));
+        assertArrayEquals(expected.schema.attrs, parsed.schema.attrs);
+        for (int i = 0; i < expected.schema.numAttrs(); i++) {
+            assertArrayEquals(expected.schema.values[i], parsed.schema.values[i]);
+        }
+        assertEquals(expected.schema.decisions, parsed.schema.decisions);
+        assertEquals(numRows, parsed.size());
+        for (int r = 0; r < numRows; r++) {
+            assertEquals("row " + r, expected.label(r), parsed.label(r));
+            for (int i = 0; i < expected.schema.numAttrs(); i++) {
+                assertEquals("row " + r, expected.value(i, r), parsed.value(i, r));
+            }
+        }
+    }
+
+    @Test
+    public void loadDecidesAsSaved() throws Exception {
+        File file = folder.newFile("forest.bin");
+        forest.save(file.getPath());
+        CompiledForest<String> loaded = RandomForest.load(file.getPath());
+        CompiledForest<String> compiled = forest.compile();
+        assertEquals(compiled.size(), loaded.size());
+        assertEquals(compiled.numNodes(), loaded.numNodes());
+        assertArrayEquals(compiled.schema.attrs, loaded.schema.attrs);
+        for (int i = 0; i < compiled.schema.numAttrs(); i++) {
+            assertArrayEquals(compiled.schema.values[i], loaded.schema.values[i]);
+        }
+        assertEquals(compiled.schema.decisions, loaded.schema.decisions);
+        assertArrayEquals(compiled.predictBatch(test), loaded.predictBatch(test));
+    }
+
+    @Test
+    public void loadedFallbacksDecideAsTheTrees() throws Exception {
+        File file = folder.newFile("fallbacks.bin");
+        forest.save(file.getPath());
+        CompiledForest<String> loaded = RandomForest.load(file.getPath());
+        // Each attribute in turn is unknown, so every fallback gets walked to.
+        for (int r = 0; r < 200; r++) {
+            for (int i = 0; i < test.schema.numAttrs(); i++) {
+                int[] row = test.row(r);
+                row[i] = -1;
+                for (int t = 0; t < forest.trees.size(); t++) {
+                    assertEquals("row " + r + " attribute " + i + " tree " + t,
+                            forest.trees.get(t).leaf(row).code, loaded.classify(t, row));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void limitsBoundTheDepthOfTrees() throws Exception {
+        TreeLimits limits = new TreeLimits(2, 1, 0.0, Integer.MAX_VALUE);
+        RandomForest<String> limited =
+            RandomForest.growRandomForest(train, 10, 1000, 5, 42L, limits, null);
+        boolean reached = false;
+        for (DecisionTree<String> tree : limited.trees) {
+            assertTrue(depth(tree) <= 2);
+            reached |= depth(tree) == 2;
+        }
+        assertTrue(reached);
+        limits = new TreeLimits(0, 1, 0.0, Integer.MAX_VALUE);
+        limited = RandomForest.growRandomForest(train, 3, 1000, 5, 42L, limits, null);
+        for (DecisionTree<String> tree : limited.trees) {
+            assertTrue(tree instanceof Decision);
+        }
+    }
+
+    @Test
+    public void limitsBoundTheNodesOfTrees() throws Exception {
+        int maxNodes = 15;
+        TreeLimits limits = new TreeLimits(Integer.MAX_VALUE, 1, 0.0, maxNodes);
+        RandomForest<String> limited =
+            RandomForest.growRandomForest(train, 10, 1000, 5, 42L, limits, null);
+        int total = 0;
+        for (DecisionTree<String> tree : limited.trees) {
+            assertTrue(numNodes(tree) <= maxNodes);
+            total += numNodes(tree);
+        }
+        CompiledForest<String> compiled = limited.compile();
+        assertEquals(total, compiled.numNodes());
+        assertTrue(compiled.numNodes() <= limited.trees.size() * maxNodes);
+        int unlimited = 0;
+        for (DecisionTree<String> tree : forest.trees.subList(0, 10)) {
+            unlimited += numNodes(tree);
+        }
+        assertTrue(total < unlimited);
+    }
+
+    @Test
+    public void limitsBoundTheGainOfSplits() throws Exception {
+        // Two decisions can't be split with a gain of more than one bit.
+        TreeLimits limits = new TreeLimits(Integer.MAX_VALUE, 1, 1.0, Integer.MAX_VALUE);
+        RandomForest<String> limited =
+            RandomForest.growRandomForest(train, 3, 1000, 5, 42L, limits, null);
+        for (DecisionTree<String> tree : limited.trees) {
+            assertTrue(tree instanceof Decision);
+        }
+        limits = new TreeLimits(Integer.MAX_VALUE, 1, 0.1, Integer.MAX_VALUE);
+        limited = RandomForest.growRandomForest(train, 10, 1000, 5, 42L, limits, null);
+        for (int t = 0; t < 10; t++) {
+            assertTrue(numNodes(limited.trees.get(t)) <= numNodes(forest.trees.get(t)));
+        }
+    }
+
+    @Test
+    public void mergedShardsMatchOneRead() throws Exception {
+        Dataset<String> whole = RandomForestInput.readDataset("mushrooms.data");
+        List<Dataset<String>> shards = new ArrayList<Dataset<String>>();
+        List<Schema<String>> schemas = new ArrayList<Schema<String>>();
+        for (int s = 0; s < 3; s++) {
+            Dataset<String> shard = RandomForestInput.readDataset("mushrooms.data", s, 3,
+                    ForestEngine.shared());
+            shards.add(shard);
+            schemas.add(shard.schema);
+        }
+        Schema<String> merged = Schema.merge(schemas);
+        assertArrayEquals(whole.schema.attrs, merged.attrs);
+        for (int i = 0; i < merged.numAttrs(); i++) {
+            assertArrayEquals(whole.schema.values[i], merged.values[i]);
+        }
+        assertEquals(whole.schema.decisions, merged.decisions);
+        int row = 0;
+        for (Dataset<String> shard : shards) {
+            Dataset<String> recoded = shard.recode(merged);
+            for (int r = 0; r < recoded.size(); r++, row++) {
+                assertEquals("row " + row, whole.label(row), recoded.label(r));
+                for (int i = 0; i < merged.numAttrs(); i++) {
+                    assertEquals("row " + row, whole.value(i, row), recoded.value(i, r));
+                }
+            }
+        }
+        assertEquals(whole.size(), row);
+    }
+
+    @Test
+    public void mergeIsOnlyNumericIfEveryShardIs() {
+        List<String> yes = Arrays.asList("y");
+        Schema<String> numeric = new Schema<String>(new String[] { "1" },
+                new String[][] { { "1.0", "2.0" } }, yes, new double[][] { { 1.0, 2.0 } });
+        Schema<String> other = new Schema<String>(new String[] { "1" },
+                new String[][] { { "3.0", "x" } }, yes, new double[][] { null });
+        Schema<String> empty = new Schema<String>(new String[0], new String[0][],
+                new ArrayList<String>(), new double[0][]);
+
+        Schema<String> merged = Schema.merge(Arrays.asList(numeric, empty, numeric));
+        assertTrue(merged.isNumeric(0));
+        assertArrayEquals(new String[] { "1.0", "2.0" }, merged.values[0]);
+
+        merged = Schema.merge(Arrays.asList(numeric, empty, other));
+        assertFalse(merged.isNumeric(0));
+        assertArrayEquals(new String[] { "1.0", "2.0", "3.0", "x" }, merged.values[0]);
+        assertEquals(3, merged.valueCode(0, "x"));
+    }
+
+    @Test
+    public void numbersAreBinnedAndSplitOnThresholds() throws Exception {
+        File file = numericFile(5000);
+        try {
+            RandomForestInput.readDataset(file.getPath(), 0, 1, ForestEngine.shared(), false);
+            fail("More than 256 values read as categorical.");
+        } catch (IllegalArgumentException e) {
+            // Too many values, as without numeric attributes.
+        }
+        Dataset<String> data = RandomForestInput.readDataset(file.getPath(), 0, 1,
+                ForestEngine.shared(), true);
+        Schema<String> schema = data.schema;
+        assertTrue(schema.isNumeric(0));
+        assertFalse(schema.isNumeric(1));
+        assertTrue(schema.values[0].length <= Dataset.MAX_VALUES);
+        for (int b = 1; b < schema.cuts[0].length; b++) {
+            assertTrue(schema.cuts[0][b - 1] < schema.cuts[0][b]);
+        }
+        assertEquals(0, schema.bin(0, -1.0));
+        assertEquals(schema.cuts[0].length - 1, schema.bin(0, 1000.0));
+
+        // The number decides, so every tree should split it at the root.
+        RandomForest<String> numeric = RandomForest.growRandomForest(data, 5, data.size(),
+                2, 42L);
+        CompiledForest<String> compiled = numeric.compile();
+        @SuppressWarnings("unchecked")
+        Decision<String>[] leaves =
+            (Decision<String>[])new Decision<?>[schema.numDecisions()];
+        for (DecisionTree<String> tree : numeric.trees) {
+            assertTrue(tree instanceof Split);
+            assertEquals(0, ((Split<String>)tree).attr);
+            int[] code = DecisionTree.encode(tree);
+            assertArrayEquals(code, DecisionTree.encode(
+                        DecisionTree.decode(schema, code, 0, leaves)));
+        }
+        int correct = 0;
+        for (int r = 0; r < data.size(); r++) {
+            int[] row = data.row(r);
+            assertEquals("row " + r, numeric.decide(row), compiled.decide(row));
+            if (compiled.predict(row) == data.label(r)) {
+                correct++;
+            }
+        }
+        assertTrue(correct >= data.size() * 99 / 100);
+    }
+
+    /**
+     * Write rows whose decision is whether their first attribute, a number
+     * with many distinct values, is over 37.5; the second attribute is a
+     * category with nothing to do with it.
+     *
+     * @param numRows   The number of rows.
+     * @return          The file.
+     */
+    private File numericFile(int numRows) throws Exception {
+        File file = folder.newFile("numbers.csv");
+        Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8);
+        SplittableRandom random = new SplittableRandom(5);
+        for (int r = 0; r < numRows; r++) {
+            double x = random.nextInt(10000) / 100.0;
+            out.write((x > 37.5 ? "hi" : "lo") + "," + x + ",c" + (r % 3) + "\n");
+        }
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void slidingForestKeepsTheLatestRowsAndTrees() throws Exception {
+        SlidingForest<String> sliding = new SlidingForest<String>(train.schema, 6, 1000,
+                500, 5, 42L);
+        try {
+            sliding.update(1);
+            fail("Grew trees from an empty window.");
+        } catch (IllegalArgumentException e) {
+            // Nothing to grow from yet.
+        }
+        sliding.add(train.range(0, 700));
+        sliding.add(train.range(700, 1500));
+        assertWindow(train.range(500, 1500), sliding.window());
+
+        RandomForestSmp<String> first = sliding.update(4);
+        assertEquals(4, first.trees.size());
+        sliding.add(train.range(1500, 1800));
+        Dataset<String> window = sliding.window();
+        assertWindow(train.range(800, 1800), window);
+
+        // The two oldest trees are retired, and the new ones are trees 4 to 7
+        // of the seed, grown from the window as it is now.
+        RandomForestSmp<String> second = sliding.update(4);
+        assertEquals(6, sliding.size());
+        List<DecisionTree<String>> grown = ForestEngine.shared().growTrees(window, 4, 4,
+                500, 5, 42L, TreeLimits.NONE, null);
+        for (int t = 0; t < 6; t++) {
+            DecisionTree<String> expected = t < 2 ? first.trees.get(t + 2) : grown.get(t - 2);
+            assertArrayEquals("tree " + t, DecisionTree.encode(expected),
+                    DecisionTree.encode(second.trees.get(t)));
+        }
+        assertEquals(4, first.trees.size());
+
+        try {
+            sliding.update(-1);
+            fail("Grew a negative number of trees.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(6, sliding.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slidingForestNeedsAWindow() {
+        new SlidingForest<String>(train.schema, 6, 0, 500, 5, 42L);
+    }
+
+    /**
+     * @return The number of nodes in tree, leaves included.
+     */
+    private static int numNodes(DecisionTree<String> tree) {
+        int n = 1;
+        if (tree instanceof Tree) {
+            for (DecisionTree<String> child : ((Tree<String>)tree).children) {
+                n += numNodes(child);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The depth of tree's deepest leaf; 0 if tree is a leaf.
+     */
+    private static int depth(DecisionTree<String> tree) {
+        int depth = 0;
+        if (tree instanceof Tree) {
+            for (DecisionTree<String> child : ((Tree<String>)tree).children) {
+                depth = Math.max(depth, 1 + depth(child));
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Check that a window holds the same rows as expected, in order.
+     */
+    private static void assertWindow(Dataset<String> expected, Dataset<String> window) {
+        assertEquals(expected.size(), window.size());
+        for (int r = 0; r < expected.size(); r++) {
+            assertEquals("row " + r, expected.label(r), window.label(r));
+            assertArrayEquals("row " + r, expected.row(r), window.row(r));
+        }
+    }
+
+}